@@ -22,18 +22,18 @@ public class AESCMac128 extends Signature {
 	final byte CONST_PAD = (byte) 0x80;
 
 	private byte[] buffer;
-	private static final short LENGTH_BUFFER = (short) 48;
+	private static final short LENGTH_BUFFER = Scratch.CMAC_LENGTH;
 
-	// Holds L, K1 and K2 during processing
-	private static final short OFFSET_SUBKEY = (short) 0;
+	// Holds L, K1 and K2 during processing, the buffer being the area of the shared scratch reserved for the CMAC
+	private static final short OFFSET_SUBKEY = Scratch.CMAC_OFFSET;
 	private static final short LENGTH_SUBKEY = (short) LENGTH_BLOCK_AES;
 
 	// Holds the intermediate values as well as the final CMAC
 	private static final short OFFSET_CMAC = (short)(OFFSET_SUBKEY + LENGTH_SUBKEY);
 	
-	public AESCMac128() {		
+	public AESCMac128(byte[] scratch) {
 		cspAESMAC = Signature.getInstance(Signature.ALG_AES_MAC_128_NOPAD, false);
-		buffer = JCSystem.makeTransientByteArray(LENGTH_BUFFER, JCSystem.CLEAR_ON_DESELECT);
+		buffer = scratch;
 	}
 	
 	public byte getAlgorithm() {
@@ -50,7 +50,7 @@ public class AESCMac128 extends Signature {
 
 	public void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen)  {
 		// Reset our entire buffer
-		Util.arrayFillNonAtomic(buffer, ZERO, LENGTH_BUFFER, (byte)0x00);
+		Util.arrayFillNonAtomic(buffer, OFFSET_SUBKEY, LENGTH_BUFFER, (byte)0x00);
 
 		/*
 		 * SUBKEY GENERATION
@@ -105,7 +105,7 @@ public class AESCMac128 extends Signature {
 		Util.arrayCopyNonAtomic(buffer, OFFSET_CMAC, sigBuff, sigOffset, LENGTH_BLOCK_AES);
 
 		// Reset our internal buffer
-		Util.arrayFillNonAtomic(buffer, ZERO, LENGTH_BUFFER, (byte)0x00);
+		Util.arrayFillNonAtomic(buffer, OFFSET_SUBKEY, LENGTH_BUFFER, (byte)0x00);
 		
 		// Return the length of the CMAC
 		return LENGTH_BLOCK_AES;
@@ -136,7 +136,7 @@ public class AESCMac128 extends Signature {
 
 		// Perform the final CBC encipherment on the last block, writing it back to the same location
 		boolean result = cspAESMAC.verify(buffer, OFFSET_CMAC, LENGTH_BLOCK_AES, sigBuff, sigOffset, sigLength);
-		Util.arrayFillNonAtomic(buffer, ZERO, LENGTH_BUFFER, (byte)0x00);
+		Util.arrayFillNonAtomic(buffer, OFFSET_SUBKEY, LENGTH_BUFFER, (byte)0x00);
 
 		return result;
 	}
@@ -0,0 +1,157 @@
+package fr.securingdata.smartsafe.server;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+
+/**
+ * List backend storing the ordered references in a growable persistent array.
+ * 
+ * Positional accesses are performed in constant time, moves only swap two references
+ * and searches scan a contiguous array. Identity#next is not used by this backend.
+ * The array is reallocated with a doubled capacity when full.
+ * */
+public class ArrayList extends List {
+	private static final short INITIAL_CAPACITY = (short) 8;
+	
+	private Object[] items;
+	private short count;
+	
+	public ArrayList() {
+		items = new Object[INITIAL_CAPACITY];
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.allocate((short) (INITIAL_CAPACITY * 2));
+	}
+	
+	public void clear() {
+		short i;
+		for (i = ZERO; i < count; i++) {
+			((Identity) items[i]).clear();
+			items[i] = null;
+		}
+		count = ZERO;
+		dropIndex();
+	}
+	
+	public short size() {
+		return count;
+	}
+	
+	public void add(Identity i) {
+		if (count == (short) items.length) {
+			Object[] tmp = new Object[(short) (count * 2)];
+			if (WriteProfiler.ENABLED)
+				WriteProfiler.allocate((short) (count * 4));
+			copy(items, ZERO, tmp, ZERO, count);
+			items = tmp;
+			JCSystem.requestObjectDeletion();
+		}
+		items[count] = i;
+		count++;//The element is only taken into account once the count is updated
+		index(i);
+	}
+	
+	public Identity get(short index) {
+		if (index < 0 || index >= count)
+			ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		return (Identity) items[index];
+	}
+	
+	public Identity get(byte[] buffer, short offset, short len) {
+		short i;
+		for (i = ZERO; i < count; i++) {
+			if (((Identity) items[i]).isEqual(buffer, offset, len))
+				return (Identity) items[i];
+		}
+		ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		return null;
+	}
+	
+	public boolean contains(Identity elem) {
+		return indexOf(elem) >= 0;
+	}
+	
+	public boolean move(Identity elem, byte direction) {
+		short index = indexOf(elem), other;
+		if (direction == MOVE_UP)
+			other = (short) (index - 1);
+		else if (direction == MOVE_DOWN)
+			other = (short) (index + 1);
+		else
+			return false;
+		if (index < 0 || other < 0 || other >= count)
+			return false;
+		
+		boolean atomic = JCSystem.getTransactionDepth() == 0;
+		if (atomic)
+			JCSystem.beginTransaction();
+		items[index] = items[other];
+		items[other] = elem;
+		if (atomic)
+			JCSystem.commitTransaction();
+		return true;
+	}
+	
+	public short toArray(Object[] out) {
+		if (count > (short) out.length)
+			ISOException.throwIt(ISO7816.SW_FILE_FULL);
+		copy(items, ZERO, out, ZERO, count);
+		return count;
+	}
+	
+	public void reorder(Object[] nodes, byte[] order, short orderOffset, short count) {
+		short i;
+		for (i = ZERO; i < count; i++)
+			items[i] = at(nodes, order, orderOffset, i);
+	}
+	
+	public void remove(Identity elem) {
+		removeAt(indexOf(elem));
+	}
+	
+	public Identity delete(byte[] buffer, short offset, short len) {
+		Identity it = get(buffer, offset, len);
+		removeAt(indexOf(it));
+		it.clear();//Cleaning all the data
+		return it;
+	}
+	
+	protected short listInUserOrder(byte[] buffer, short offset, short fromEntryNumber, boolean withHandles) {
+		return list(items, fromEntryNumber, count, buffer, offset, withHandles);
+	}
+	
+	protected void indexAll() {
+		short i;
+		for (i = ZERO; i < count; i++)
+			insertIndex((Identity) items[i]);
+	}
+	
+	private short indexOf(Identity elem) {
+		short i;
+		for (i = ZERO; i < count; i++) {
+			if (items[i] == elem)
+				return i;
+		}
+		return (short) -1;
+	}
+	private void removeAt(short index) {
+		if (index < 0)
+			ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		unindex((Identity) items[index]);
+		
+		//Shifting the following references must not be interrupted
+		boolean atomic = JCSystem.getTransactionDepth() == 0;
+		if (atomic)
+			JCSystem.beginTransaction();
+		copy(items, (short) (index + 1), items, index, (short) (count - index - 1));
+		count--;
+		items[count] = null;
+		if (atomic)
+			JCSystem.commitTransaction();
+	}
+	private static void copy(Object[] src, short srcOffset, Object[] dest, short destOffset, short len) {
+		short i;
+		for (i = ZERO; i < len; i++)
+			dest[(short) (destOffset + i)] = src[(short) (srcOffset + i)];
+	}
+}
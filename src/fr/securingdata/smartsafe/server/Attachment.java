@@ -0,0 +1,182 @@
+package fr.securingdata.smartsafe.server;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Binary data of an Entry stored as a chain of fixed size segments, for values too long for a single array.
+ *
+ * Each segment is allocated and freed independently, so that an attachment fits in fragmented memory.
+ * All the segments are full except the last one, whose length is recorded separately.
+ * The attachment is read and written segment by segment:
+ * 	- a segment is appended by writing the segment following the last one
+ * 	- rewriting a segment only updates its modified bytes, see WriteFilter
+ * 	- writing a segment shorter than ATTACHMENT_SEGMENT_SIZE makes it the last one, the following segments being freed
+ * */
+public class Attachment implements Constants {
+	private static final short INITIAL_CAPACITY = (short) 8;
+
+	private Object[] segments;
+	private short count;
+	private short lastLength;
+
+	public Attachment() {
+		segments = new Object[INITIAL_CAPACITY];
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.allocate((short) (INITIAL_CAPACITY * 4));
+	}
+
+	/**
+	 * Return a deep copy of this attachment, whose segments are allocated independently.
+	 * The copy is not referenced yet, so that it does not need to be atomic.
+	 * */
+	public Attachment copy() {
+		Attachment copy = new Attachment();
+		short i;
+		if (count > (short) copy.segments.length) {
+			copy.segments = new Object[count];
+			if (WriteProfiler.ENABLED)
+				WriteProfiler.allocate((short) (count * 4));
+		}
+		for (i = ZERO; i < count; i++) {
+			copy.segments[i] = new byte[ATTACHMENT_SEGMENT_SIZE];
+			if (WriteProfiler.ENABLED) {
+				WriteProfiler.allocate(ATTACHMENT_SEGMENT_SIZE);
+				WriteProfiler.write(ATTACHMENT_SEGMENT_SIZE);
+			}
+			Util.arrayCopyNonAtomic((byte[]) segments[i], ZERO, (byte[]) copy.segments[i], ZERO, ATTACHMENT_SEGMENT_SIZE);
+		}
+		copy.count = count;
+		copy.lastLength = lastLength;
+		return copy;
+	}
+	
+	public short getNbSegments() {
+		return count;
+	}
+
+	/**
+	 * Write the number of segments (2 bytes), the total length (4 bytes) and the segment size (2 bytes).
+	 * */
+	public short getInfo(byte[] out, short outOffset) {
+		short full = count == 0 ? ZERO : (short) (count - 1);
+		//Total length = full * ATTACHMENT_SEGMENT_SIZE + lastLength, ATTACHMENT_SEGMENT_SIZE being 2^7
+		short high = (short) (full >> 9), low = (short) ((short) (full << 7) + lastLength);
+		if (low >= 0 && (short) (full << 7) < 0)//Carry
+			high++;
+		Util.setShort(out, outOffset, count);
+		Util.setShort(out, (short) (outOffset + 2), high);
+		Util.setShort(out, (short) (outOffset + 4), low);
+		Util.setShort(out, (short) (outOffset + 6), ATTACHMENT_SEGMENT_SIZE);
+		return (short) 8;
+	}
+
+	public short readSegment(short segment, byte[] out, short outOffset) {
+		if (segment < 0 || segment >= count)
+			ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		short len = segment == (short) (count - 1) ? lastLength : ATTACHMENT_SEGMENT_SIZE;
+		Util.arrayCopyNonAtomic((byte[]) segments[segment], ZERO, out, outOffset, len);
+		return len;
+	}
+
+	public void writeSegment(short segment, byte[] in, short inOffset, short len) {
+		if (segment < 0 || segment > count)
+			ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		if (len < 0 || len > ATTACHMENT_SEGMENT_SIZE || (len == 0 && segment != 0))
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+		if (len == 0) {//Empty segment 0 -> empty attachment
+			clear();
+			return;
+		}
+		if (segment == count) {
+			append(in, inOffset, len);
+			return;
+		}
+
+		//The content and the length of the attachment are updated together
+		boolean atomic = JCSystem.getTransactionDepth() == 0;
+		if (atomic)
+			JCSystem.beginTransaction();
+		WriteFilter.update((byte[]) segments[segment], ZERO, in, inOffset, len, false);
+		if (len != ATTACHMENT_SEGMENT_SIZE || segment == (short) (count - 1)) {
+			count = (short) (segment + 1);
+			lastLength = len;
+		}
+		if (atomic) {
+			if (WriteProfiler.ENABLED)
+				WriteProfiler.commit();
+			JCSystem.commitTransaction();
+		}
+		if (len != ATTACHMENT_SEGMENT_SIZE)//Bytes beyond the end of the attachment
+			Util.arrayFillNonAtomic((byte[]) segments[segment], len, (short) (ATTACHMENT_SEGMENT_SIZE - len), ZERO);
+		free(count);
+	}
+
+	/**
+	 * Wipe and free all the segments.
+	 * */
+	public void clear() {
+		boolean atomic = JCSystem.getTransactionDepth() == 0;
+		if (atomic)
+			JCSystem.beginTransaction();
+		count = lastLength = ZERO;
+		if (atomic)
+			JCSystem.commitTransaction();
+		free(ZERO);
+	}
+
+	private void append(byte[] in, short inOffset, short len) {
+		if (count != 0 && lastLength != ATTACHMENT_SEGMENT_SIZE)
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);//Only the last segment can be partial
+		if (count == (short) 0x7FFF)
+			ISOException.throwIt(ISO7816.SW_FILE_FULL);
+
+		if (count == (short) segments.length) {
+			short capacity = (short) (count << 1);
+			if (capacity < 0)
+				capacity = (short) 0x7FFF;
+			Object[] tmp = new Object[capacity];
+			short i;
+			for (i = ZERO; i < count; i++)
+				tmp[i] = segments[i];
+			if (WriteProfiler.ENABLED)
+				WriteProfiler.allocate((short) (capacity * 4));
+			segments = tmp;
+			JCSystem.requestObjectDeletion();
+		}
+
+		byte[] segment = new byte[ATTACHMENT_SEGMENT_SIZE];
+		if (WriteProfiler.ENABLED) {
+			WriteProfiler.allocate(ATTACHMENT_SEGMENT_SIZE);
+			WriteProfiler.write(len);
+		}
+		Util.arrayCopyNonAtomic(in, inOffset, segment, ZERO, len);
+
+		//The segment is only part of the attachment once the count is updated
+		boolean atomic = JCSystem.getTransactionDepth() == 0;
+		segments[count] = segment;
+		if (atomic)
+			JCSystem.beginTransaction();
+		count++;
+		lastLength = len;
+		if (atomic)
+			JCSystem.commitTransaction();
+	}
+	/**
+	 * Wipe and free the segments from the given one, which are no longer part of the attachment.
+	 * */
+	private void free(short from) {
+		short i;
+		for (i = from; i < (short) segments.length && segments[i] != null; i++) {
+			Util.arrayFillNonAtomic((byte[]) segments[i], ZERO, ATTACHMENT_SEGMENT_SIZE, ZERO);
+			if (WriteProfiler.ENABLED)
+				WriteProfiler.write(ATTACHMENT_SEGMENT_SIZE);
+			segments[i] = null;
+		}
+		if (i != from)
+			JCSystem.requestObjectDeletion();
+	}
+}
@@ -0,0 +1,191 @@
+package fr.securingdata.smartsafe.server;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Journal of staged updates, committed or aborted as a whole.
+ *
+ * While a batch is opened, updates of data, identifiers and positions are not applied:
+ * new values are written in fresh buffers and recorded in the journal along with their target.
+ * The commit swaps the buffers and replays the moves within a single transaction,
+ * so that either all the staged updates are applied or none of them.
+ * The buffers dropped by the batch are wiped: the staged values when the batch is aborted or a value is staged again,
+ * the replaced values once the commit is done.
+ *
+ * The journal is persistent: an opened batch survives a card reset and can still be committed or aborted.
+ * */
+public class Batch implements Constants {
+	private static final byte OP_SET_DATA       = (byte) 1;//target: Entry, param: data index, value: new buffer
+	private static final byte OP_SET_IDENTIFIER = (byte) 2;//target: Identity, source: List, value: new buffer
+	private static final byte OP_MOVE           = (byte) 3;//target: Identity, source: List, param: direction
+	private static final byte OP_MOVE_TO        = (byte) 4;//target: Entry, source: current Group, value: new Group
+
+	private byte status;
+	private short size;
+	private byte[] ops, params;
+	private Object[] targets, sources, values;
+
+	public Batch() {
+		ops = new byte[BATCH_MAX_SIZE];
+		params = new byte[BATCH_MAX_SIZE];
+		targets = new Object[BATCH_MAX_SIZE];
+		sources = new Object[BATCH_MAX_SIZE];
+		values = new Object[BATCH_MAX_SIZE];
+	}
+
+	public byte getStatus() {
+		return status;
+	}
+	public boolean isOpened() {
+		return status == STATUS_ON;
+	}
+	public short size() {
+		return size;
+	}
+	public short available() {
+		return (short) (BATCH_MAX_SIZE - size);
+	}
+
+	public void open() {
+		if (status != STATUS_NO)
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		clear();
+		status = STATUS_ON;
+	}
+	public void abort() {
+		status = STATUS_NO;
+		clear();
+	}
+	public void commit() {
+		short i;
+		JCSystem.beginTransaction();
+		for (i = ZERO; i < size; i++) {
+			if (!apply(i)) {
+				//The state has changed since this operation has been staged, the whole batch is discarded
+				JCSystem.abortTransaction();
+				abort();
+				ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+			}
+		}
+		status = STATUS_NO;
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.commit();
+		JCSystem.commitTransaction();
+		clear();
+	}
+
+	public void stageData(Entry entry, byte index, byte[] in, short inOffset, short len) {
+		stage(OP_SET_DATA, entry, null, copy(in, inOffset, len), index);
+	}
+	public void stageIdentifier(List list, Identity identity, byte[] in, short inOffset, short len) {
+		Identity.checkLength(len);
+		stage(OP_SET_IDENTIFIER, identity, list, copy(in, inOffset, len), ZERO);
+	}
+	public void stageMove(List list, Identity elem, byte direction) {
+		if (direction != MOVE_UP && direction != MOVE_DOWN)
+			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+		stage(OP_MOVE, elem, list, null, direction);
+	}
+	public void stageMoveTo(Entry entry, Group from, Group to) {
+		stage(OP_MOVE_TO, entry, from, to, ZERO);
+	}
+
+	private void stage(byte op, Object target, Object source, Object value, byte param) {
+		short i;
+
+		//A data or identifier staged twice is only recorded once, with its last value
+		if (op == OP_SET_DATA || op == OP_SET_IDENTIFIER) {
+			for (i = ZERO; i < size; i++) {
+				if (ops[i] == op && targets[i] == target && params[i] == param) {
+					byte[] old = (byte[]) values[i];
+					values[i] = value;
+					Identity.wipe(old, null);
+					JCSystem.requestObjectDeletion();
+					return;
+				}
+			}
+		}
+
+		if (size == BATCH_MAX_SIZE)
+			ISOException.throwIt(ISO7816.SW_FILE_FULL);
+
+		//The record is only taken into account once the size is updated
+		ops[size] = op;
+		params[size] = param;
+		targets[size] = target;
+		sources[size] = source;
+		values[size] = value;
+		size++;
+	}
+	private byte[] copy(byte[] in, short inOffset, short len) {
+		byte[] tmp = new byte[len];
+		Util.arrayCopyNonAtomic(in, inOffset, tmp, ZERO, len);
+		if (WriteProfiler.ENABLED) {
+			WriteProfiler.allocate(len);
+			WriteProfiler.write(len);
+		}
+		return tmp;
+	}
+	private boolean apply(short i) {
+		Identity elem = (Identity) targets[i];
+		List list;
+		byte[] value;
+		//The journal keeps the replaced values, wiped by clear() once the transaction is committed
+		switch (ops[i]) {
+			case OP_SET_DATA:
+				value = (byte[]) values[i];
+				values[i] = ((Entry) elem).getBuffer(params[i]);
+				((Entry) elem).swapData(params[i], value);
+				return true;
+			case OP_SET_IDENTIFIER:
+				value = (byte[]) values[i];
+				values[i] = elem.identifier;
+				elem.swapIdentifier(value);
+				((List) sources[i]).reindex(elem);
+				return true;
+			case OP_MOVE:
+				list = (List) sources[i];
+				return list.contains(elem) && list.move(elem, params[i]);
+			case OP_MOVE_TO:
+				if (!((Group) sources[i]).entries.contains(elem))
+					return false;
+				((Group) sources[i]).moveEntry((Entry) elem, (Group) values[i]);
+				retarget(i, elem, (Group) values[i]);
+				return true;
+			default:
+				return false;
+		}
+	}
+	/**
+	 * The operations staged after the move i were recorded against the previous Group of the moved Entry:
+	 * they now apply to its new Group, so that renames are reindexed and moves are performed in the list holding the Entry.
+	 * */
+	private void retarget(short i, Identity elem, Group to) {
+		for (i++; i < size; i++) {
+			if (targets[i] != elem)
+				continue;
+			if (ops[i] == OP_SET_IDENTIFIER || ops[i] == OP_MOVE)
+				sources[i] = to.entries;
+			else if (ops[i] == OP_MOVE_TO)
+				sources[i] = to;
+		}
+	}
+	/**
+	 * Empty the journal, wiping the buffers it references: the staged values, or the replaced ones after a commit.
+	 * */
+	private void clear() {
+		short i;
+		for (i = ZERO; i < size; i++) {
+			if (ops[i] == OP_SET_DATA || ops[i] == OP_SET_IDENTIFIER)
+				Identity.wipe((byte[]) values[i], null);
+			targets[i] = null;
+			sources[i] = null;
+			values[i] = null;
+		}
+		size = ZERO;
+		JCSystem.requestObjectDeletion();
+	}
+}
@@ -0,0 +1,80 @@
+package fr.securingdata.smartsafe.server;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Incremental deletion of the Groups, so that deleting a large Group fits in the response timeout of the readers.
+ *
+ * A deleted Group is unlinked from the Groups and moved to the trash within a single transaction, its handle being released:
+ * it cannot be reached from then. Its Entries are then wiped and freed by steps of at most CLEANUP_STEP_SIZE items,
+ * on each Group deletion and on each CLEANUP command, the Group itself being freed once empty.
+ *
+ * The item being wiped is recorded within the same transaction as its removal from its list:
+ * if a step is torn, the wipe is resumed by the next step, clearing an item twice being harmless.
+ * Each SmartSafe instance owns its trash.
+ * */
+public class Cleanup implements Constants {
+	private List trash;
+	private Identity pending;
+
+	Cleanup() {
+		trash = List.create();
+	}
+
+	/**
+	 * Unlink the Group with the given name and move it to the trash.
+	 * */
+	Group discard(List groups, byte[] buffer, short offset, short len) {
+		Group group = (Group) groups.get(buffer, offset, len);
+		JCSystem.beginTransaction();
+		groups.remove(group);
+		group.releaseHandle();
+		trash.add(group);
+		JCSystem.commitTransaction();
+		return group;
+	}
+
+	/**
+	 * Wipe and free at most CLEANUP_STEP_SIZE items of the trash, the Entries of a Group being freed before the Group.
+	 * */
+	void step() {
+		short budget = CLEANUP_STEP_SIZE;
+		Group group;
+		finish();
+		while (budget > 0 && trash.size() != 0) {
+			group = (Group) trash.get(ZERO);
+			if (group.getNbEntries() == 0)
+				free(trash, group);
+			else
+				free(group.entries, group.entries.get(ZERO));
+			budget--;
+		}
+	}
+
+	/**
+	 * output: the number of Groups (2 bytes) and the number of Entries (2 bytes) still to be wiped
+	 * */
+	short report(byte[] buffer, short offset) {
+		short i, nbGroups = trash.size(), nbEntries = ZERO;
+		for (i = ZERO; i < nbGroups; i++)
+			nbEntries += ((Group) trash.get(i)).getNbEntries();
+		Util.setShort(buffer, offset, nbGroups);
+		Util.setShort(buffer, (short) (offset + 2), nbEntries);
+		return (short) 4;
+	}
+
+	private void free(List list, Identity it) {
+		JCSystem.beginTransaction();
+		list.remove(it);
+		pending = it;
+		JCSystem.commitTransaction();
+		finish();
+	}
+	private void finish() {
+		if (pending == null)
+			return;
+		pending.clear();
+		pending = null;//The item is only forgotten once fully wiped
+	}
+}
@@ -17,9 +17,22 @@ public interface Constants {
 	short TRNS_BUFF_PIN_LEN_OFFSET = (short) TRNS_BUFF_PTL_OFFSET + PIN_LEN_SIZE;
 	short TRNS_BUFF_PIN_VAL_OFFSET = (short) TRNS_BUFF_PIN_LEN_OFFSET + PIN_LEN_SIZE;
 	short TRNS_BUFF_MAX_SIZE       = (short) STATUS_SIZE + PIN_DATA_MAX_SIZE;
+	
+	short BATCH_MAX_SIZE = (short) 32;
 
 	byte CLA_SECURED      = (byte) 0x84;
 	
+	/* SCP03 security levels, see GlobalPlatform specifications */
+	byte SEC_C_MAC         = (byte) 0x01;
+	byte SEC_C_DEC         = (byte) 0x02;
+	byte SEC_R_MAC         = (byte) 0x10;
+	byte SEC_R_ENC         = (byte) 0x20;
+	byte SEC_AUTHENTICATED = (byte) 0x80;
+	byte CLA_CHAINING     = (byte) 0x10;
+	short CLA_INS_MASK    = (short) 0xECFF;//Removes the command chaining bit and the logical channel number from CLA
+	
+	byte MAX_CHANNELS = (byte) 4;//Basic logical channels only
+	
 	short SW_DATA_REMAINING = (short) 0x6310;
 	
 	short CLA_INS_INIT_UPDATE  = (short) 0x8050;
@@ -31,15 +44,21 @@ public interface Constants {
 	short CLA_SEC_INS_AVAILABLE    = (short) 0x8403;
 	short CLA_INS_GET_VERSION      = (short) 0x0004;//Executed at any time, no SM
 	short CLA_INS_MANAGE_TRNS      = (short) 0x0005;//Executed at any time, no SM
+	short CLA_INS_MANAGE_BATCH     = (short) 0x0006;
+	short CLA_INS_BOOTSTRAP        = (short) 0x0007;//Executed at any time, no SM
+	short CLA_INS_RESERVE          = (short) 0x0008;
+	short CLA_INS_GET_PROFILE      = (short) 0x000F;//Simulator builds only, executed at any time, no SM
 	
 	/* Group related command do not handle sensitive data, no SM */
-	short CLA_INS_CREATE_GROUP = (short) 0x0011;
-	short CLA_INS_DELETE_GROUP = (short) 0x0012;
-	short CLA_INS_LIST_GROUPS  = (short) 0x0013;
-	short CLA_INS_SELECT_GROUP = (short) 0x0014;
-	short CLA_INS_GET_STATS    = (short) 0x0015;
-	short CLA_INS_RENAME_GROUP = (short) 0x0016;
-	short CLA_INS_MOVE_GROUP   = (short) 0x0017;
+	short CLA_INS_CREATE_GROUP   = (short) 0x0011;
+	short CLA_INS_DELETE_GROUP   = (short) 0x0012;
+	short CLA_INS_LIST_GROUPS    = (short) 0x0013;
+	short CLA_INS_SELECT_GROUP   = (short) 0x0014;
+	short CLA_INS_GET_STATS      = (short) 0x0015;
+	short CLA_INS_RENAME_GROUP   = (short) 0x0016;
+	short CLA_INS_MOVE_GROUP     = (short) 0x0017;
+	short CLA_INS_REORDER_GROUPS = (short) 0x0018;
+	short CLA_INS_CLEANUP        = (short) 0x0019;
 	
 	/* Entry related commands are almost all under SM */
 	short CLA_SEC_INS_ADD_ENTRY    = (short) 0x8421;
@@ -51,13 +70,77 @@ public interface Constants {
 	short CLA_INS_GET_DATA         = (short) 0x0025;//For not sensitive data only
 	short CLA_INS_SET_DATA         = (short) 0x0026;//For not sensitive data only
 	short CLA_INS_MOVE_ENTRY       = (short) 0x0027;//This command does not transport sensitive data
+	short CLA_SEC_INS_SET_MULTI_DATA  = (short) 0x8428;
+	short CLA_SEC_INS_RESIZE_ENTRY    = (short) 0x8429;
+	short CLA_SEC_INS_GET_DATA_PART   = (short) 0x842A;
+	short CLA_SEC_INS_SET_DATA_PART   = (short) 0x842B;
+	short CLA_SEC_INS_SET_DATA_LENGTH = (short) 0x842C;
+	short CLA_SEC_INS_READ_SEGMENT    = (short) 0x842D;
+	short CLA_SEC_INS_WRITE_SEGMENT   = (short) 0x842E;
+	short CLA_SEC_INS_INIT_ATTACHMENT = (short) 0x842F;
+	short CLA_SEC_INS_COMPUTE_OTP     = (short) 0x8430;
+	short CLA_SEC_INS_CLONE_ENTRY     = (short) 0x8431;
+	short CLA_SEC_INS_GENERATE        = (short) 0x8432;
+	short CLA_INS_REORDER_ENTRIES     = (short) 0x0031;//This command does not transport sensitive data
+	
+	short DATA_PART_MAX_SIZE  = (short) 200;
+	short CHAIN_BUFFER_SIZE   = (short) 512;
+	short IDENTIFIER_MAX_SIZE = (short) 127;//Listed with a one byte length
+	
+	short ATTACHMENT_SEGMENT_SIZE = (short) 128;
+	short ATTACHMENT_INFO         = (short) 0xFFFF;//Segment number returning the attachment information
+	byte ATTACHMENT_REMOVE        = (byte) 0x01;//p2 of INIT_ATTACHMENT
+	
+	byte SELECT_BY_HANDLE  = (byte) 0x01;//p2 of select commands
+	byte LIST_WITH_HANDLES = (byte) 0x01;//p2 flag of list commands
+	byte LIST_SORTED       = (byte) 0x02;//p2 flag of list commands
+	byte REORDER_BY_HANDLE = (byte) 0x01;//p2 of reorder commands
+	byte STATS_WRITES      = (byte) 0x01;//p1 of GET_STATS
+	byte GENERATE_RETURN   = (byte) 0x80;//p2 of GENERATE
+	
+	short HANDLE_TABLE_SIZE = (short) 255;
+	short REORDER_MAX_SIZE  = (short) 128;
+	short CLEANUP_STEP_SIZE = (short) 8;//Number of items freed by a cleanup step
+	short NO_HANDLE         = (short) 0xFFFF;
 	
 	byte MOVE_UP   = (byte) 0x01;
 	byte MOVE_DOWN = (byte) 0x02;
 	byte MOVE_TO   = (byte) 0x04;
 	
+	/* Tags of the Bootstrap response */
+	byte TAG_LIFE_CYCLE  = (byte) 0x80;
+	byte TAG_PIN_TRIES   = (byte) 0x81;
+	byte TAG_VERSION     = (byte) 0x82;
+	byte TAG_TRANSACTION = (byte) 0x83;
+	byte TAG_BATCH       = (byte) 0x84;
+	byte TAG_FEATURES    = (byte) 0x85;
+	byte TAG_GROUP_COUNT = (byte) 0x86;
+	byte TAG_GROUP_NAMES = (byte) 0x87;
+	
+	/* Supported features, returned by Bootstrap */
+	short FEATURE_BATCH          = (short) 0x0001;
+	short FEATURE_HANDLES        = (short) 0x0002;
+	short FEATURE_SORTED_LIST    = (short) 0x0004;
+	short FEATURE_WRITE_STATS    = (short) 0x0008;
+	short FEATURE_RESERVATION    = (short) 0x0010;
+	short FEATURE_DATA_PART      = (short) 0x0020;
+	short FEATURE_CHAINING       = (short) 0x0040;
+	short FEATURE_ATTACHMENTS    = (short) 0x0080;
+	short FEATURE_OTP            = (short) 0x0100;
+	short FEATURE_SECURITY_LEVEL = (short) 0x0200;
+	short FEATURE_PIN_IN_AUTH    = (short) 0x0400;
+	short FEATURE_REORDER        = (short) 0x0800;
+	short FEATURE_CLONE          = (short) 0x1000;
+	short FEATURE_CLEANUP        = (short) 0x2000;
+	short FEATURE_GENERATE       = (short) 0x4000;
+	short FEATURES = (short) (FEATURE_BATCH | FEATURE_HANDLES | FEATURE_SORTED_LIST | FEATURE_WRITE_STATS | FEATURE_RESERVATION
+	                        | FEATURE_DATA_PART | FEATURE_CHAINING | FEATURE_ATTACHMENTS | FEATURE_OTP
+	                        | FEATURE_SECURITY_LEVEL | FEATURE_PIN_IN_AUTH | FEATURE_REORDER
+	                        | FEATURE_CLONE | FEATURE_CLEANUP | FEATURE_GENERATE);
+	
 	byte ZERO = (byte) 0x00;
 	
 	byte GROUP_INDEX = (byte) 0;
 	byte ENTRY_INDEX = (byte) 1;
+	byte SELECTION_SIZE = (byte) 2;
 }
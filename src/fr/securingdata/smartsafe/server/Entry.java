@@ -1,43 +1,199 @@
 package fr.securingdata.smartsafe.server;
 
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
 
 public class Entry extends Identity {
-	private Object[] data;
+	private Object[] data, shadows;
 	
 	public Entry(byte nbData) {
 		data = new Object[nbData];
+		shadows = new Object[nbData];
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.allocate((short) (nbData * 4));
 	}
 	
 	public void clear() {
 		super.clear();
+		if (data == null)//Already cleared, see Cleanup
+			return;
 		short i;
+		for (i = ZERO; i < data.length; i++)
+			wipeData(data[i], shadows[i]);
+		data = shadows = null;
+	}
+	public short getNbData() {
+		return (short) data.length;
+	}
+	/**
+	 * Change the number of data elements of this Entry.
+	 * The existing data are kept, except the ones beyond the new number of data elements that are wiped.
+	 * */
+	public void resize(byte nbData) {
+		if (nbData == data.length)
+			return;
+		Object[] newData = new Object[nbData], newShadows = new Object[nbData], oldData = data, oldShadows = shadows;
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.allocate((short) (nbData * 4));
+		short i;
+		for (i = ZERO; i < nbData && i < oldData.length; i++) {
+			newData[i] = oldData[i];
+			newShadows[i] = oldShadows[i];
+		}
+		
+		//Both arrays must be flipped together
+		JCSystem.beginTransaction();
+		data = newData;
+		shadows = newShadows;
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.commit();
+		JCSystem.commitTransaction();
+		
+		for (i = nbData; i < oldData.length; i++)
+			wipeData(oldData[i], oldShadows[i]);
+		JCSystem.requestObjectDeletion();
+	}
+	
+	/**
+	 * Copy all the data of the given Entry, which must have the same number of data.
+	 * This Entry must not be part of a Group yet, so that the copy does not need to be atomic.
+	 * */
+	void copyData(Entry src) {
+		short i;
+		byte[] value, copy;
 		for (i = ZERO; i < data.length; i++) {
-			if (data[i] != null) {
-				byte[] tmp = (byte[]) data[i];
-				Util.arrayFillNonAtomic(tmp, ZERO, (short) tmp.length, ZERO);
+			if (src.data[i] instanceof Attachment) {
+				data[i] = ((Attachment) src.data[i]).copy();
+				continue;
 			}
+			value = (byte[]) src.data[i];
+			if (value == null)
+				continue;
+			copy = new byte[value.length];
+			if (WriteProfiler.ENABLED) {
+				WriteProfiler.allocate((short) value.length);
+				WriteProfiler.write((short) value.length);
+			}
+			Util.arrayCopyNonAtomic(value, ZERO, copy, ZERO, (short) value.length);
+			data[i] = copy;
 		}
-		data = null;
 	}
-	public short getNbData() {
-		return (short) data.length;
+	
+	public boolean isAttachment(byte index) {
+		return data[index] instanceof Attachment;
+	}
+	public Attachment getAttachment(byte index) {
+		if (!isAttachment(index))
+			ISOException.throwIt(ISO7816.SW_COMMAND_INCOMPATIBLE);
+		return (Attachment) data[index];
+	}
+	/**
+	 * Replace the data at the given index by an empty Attachment, or by an empty data if attachment is false.
+	 * The previous value is wiped.
+	 * */
+	public void initAttachment(byte index, boolean attachment) {
+		Object old = data[index], oldShadow = shadows[index];
+		Attachment value = attachment ? new Attachment() : null;
+		
+		JCSystem.beginTransaction();
+		data[index] = value;
+		shadows[index] = null;
+		JCSystem.commitTransaction();
+		
+		wipeData(old, oldShadow);
+		JCSystem.requestObjectDeletion();
 	}
+	
 	public short getData(byte index, byte[] out, short outOffset) {
-		byte[] tmp = (byte[]) data[index];
+		byte[] tmp = bytes(index);
 		if (tmp == null)
 			return ZERO;
 		Util.arrayCopyNonAtomic(tmp, ZERO, out, outOffset, (short) tmp.length);
 		return (short) tmp.length;
 	}
+	public short getDataLength(byte index) {
+		byte[] tmp = bytes(index);
+		return tmp == null ? ZERO : (short) tmp.length;
+	}
+	/**
+	 * Read at most len bytes of the data, from the given offset.
+	 * return: the number of bytes read, lower than len when the end of the data is reached
+	 * */
+	public short getDataPart(byte index, short offset, short len, byte[] out, short outOffset) {
+		short dataLen = getDataLength(index);
+		if (offset < 0 || offset > dataLen)
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		if (len > (short) (dataLen - offset))
+			len = (short) (dataLen - offset);
+		if (len != 0)
+			Util.arrayCopyNonAtomic(bytes(index), offset, out, outOffset, len);
+		return len;
+	}
+	/**
+	 * Write len bytes of the data, from the given offset, without changing its length (see #setDataLength(byte, short)).
+	 * Only the modified bytes are written, or the whole range for the password, with an atomic copy: the data are not double buffered.
+	 * */
+	public void setDataPart(byte index, short offset, byte[] in, short inOffset, short len) {
+		if (offset < 0 || len > (short) (getDataLength(index) - offset))
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		if (len != 0)
+			WriteFilter.update(bytes(index), offset, in, inOffset, len, index == 0);
+	}
+	/**
+	 * Change the length of the data, the existing bytes are kept up to the new length and the new bytes are set to 0.
+	 * */
+	public void setDataLength(byte index, short length) {
+		short oldLength = getDataLength(index);
+		if (length == oldLength && data[index] != null)
+			return;
+		byte[] tmp = getWritable(bytes(index), (byte[]) shadows[index], length);
+		if (oldLength > length)
+			oldLength = length;
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.write(length);
+		if (oldLength != 0)
+			Util.arrayCopyNonAtomic(bytes(index), ZERO, tmp, ZERO, oldLength);
+		Util.arrayFillNonAtomic(tmp, oldLength, (short) (length - oldLength), ZERO);
+		swapData(index, tmp);
+	}
 	public void setData(byte index, byte[] in, short inOffset, short length) {
-		byte[] tmp = (byte[]) data[index];
-		if (tmp == null || tmp.length != length) {
-			if (tmp != null)
-				JCSystem.requestObjectDeletion();
-			data[index] = tmp = new byte[length];
+		if (WriteFilter.update(bytes(index), in, inOffset, length, index == 0))//The password is never patched
+			return;
+		byte[] tmp = getWritable(bytes(index), (byte[]) shadows[index], length);
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.write(length);
+		Util.arrayCopyNonAtomic(in, inOffset, tmp, ZERO, length);
+		swapData(index, tmp);
+	}
+	/**
+	 * Return the buffer of the data at the given index, for computations that must not copy the data out of the Entry.
+	 * */
+	byte[] getBuffer(byte index) {
+		return bytes(index);
+	}
+	/**
+	 * Return the data at the given index, which must not be an Attachment.
+	 * */
+	private byte[] bytes(byte index) {
+		if (isAttachment(index))
+			ISOException.throwIt(ISO7816.SW_COMMAND_INCOMPATIBLE);
+		return (byte[]) data[index];
+	}
+	private static void wipeData(Object value, Object shadow) {
+		if (value instanceof Attachment) {
+			((Attachment) value).clear();
+			return;
 		}
-		Util.arrayCopy(in, inOffset, tmp, ZERO, (short) tmp.length);
+		wipe((byte[]) value, null);
+		wipe((byte[]) shadow, (byte[]) value);
+	}
+	public void swapData(byte index, byte[] value) {
+		byte[] old = (byte[]) data[index];//Attachments are never swapped
+		drop((byte[]) shadows[index], old, value);
+		data[index] = value;//Flip, the new value is active from now
+		shadows[index] = old;
+		release(old, value);
 	}
 }
@@ -1,11 +1,20 @@
 package fr.securingdata.smartsafe.server;
 
+import javacard.framework.JCSystem;
+
 public class Group extends Identity {
 	List entries;
 	
-	public Group(byte[] buffer, short offset, short len) {
-		entries = new List();
+	Group() {
+		entries = List.create();
+	}
+	/**
+	 * Name a Group allocated empty, see Reservation, and add it in the given list.
+	 * The Group and its Entries are given handles from the given table.
+	 * */
+	void init(List list, HandleTable handles, byte[] buffer, short offset, short len) {
 		setIdentifier(buffer, offset, len);
+		register(list, this, handles, null);
 	}
 	
 	public void clear() {
@@ -15,18 +24,54 @@ public class Group extends Identity {
 	public short getNbEntries() {
 		return entries.size();
 	}
-	public Entry addEmptyEntry(byte nbData) {
-		Entry entry = new Entry(nbData);
-		entries.add(entry);
+	/**
+	 * Add the given empty Entry, drawn from a Reservation, under the given identifier.
+	 * */
+	public Entry addEmptyEntry(Entry entry, byte[] buffer, short offset, short len) {
+		entry.setIdentifier(buffer, offset, len);
+		register(entries, entry, handles, this);
 		return entry;
 	}
+	/**
+	 * Add a deep copy of the given Entry, which may belong to another Group, under a new identifier.
+	 * The copy is written in the given empty Entry, drawn from a Reservation with the number of data of the source.
+	 * */
+	public Entry cloneEntry(Entry entry, Entry src, byte[] buffer, short offset, short len) {
+		entry.copyData(src);
+		return addEmptyEntry(entry, buffer, offset, len);
+	}
+	/**
+	 * Give a handle to the item and add it in the list within a single transaction:
+	 * a tearing cannot leave a slot of the HandleTable allocated to an item which is not part of the list.
+	 * */
+	private static void register(List list, Identity item, HandleTable handles, Group owner) {
+		boolean atomic = JCSystem.getTransactionDepth() == 0;
+		if (atomic)
+			JCSystem.beginTransaction();
+		item.handles = handles;
+		item.handle = handles.allocate(item, owner);
+		list.add(item);//The item is only part of the list from now
+		if (atomic)
+			JCSystem.commitTransaction();
+	}
+	public void moveEntry(Entry entry, Group to) {
+		//May already be part of a transaction when a batch is committed
+		boolean atomic = JCSystem.getTransactionDepth() == 0;
+		if (atomic)
+			JCSystem.beginTransaction();
+		entries.remove(entry);
+		to.entries.add(entry);
+		handles.setOwner(entry.handle, to);
+		if (atomic)
+			JCSystem.commitTransaction();
+	}
 	public Entry getEntry(byte[] buffer, short offset, short len) {
 		return (Entry) entries.get(buffer, offset, len);
 	}
-	public void deleteEntry(byte[] buffer, short offset, short len) {
-		entries.delete(buffer, offset, len);
+	public Entry deleteEntry(byte[] buffer, short offset, short len) {
+		return (Entry) entries.delete(buffer, offset, len);
 	}
-	public short listEntries(byte[] buffer, short fromEntryNumber) {
-		return entries.list(buffer, fromEntryNumber);
+	public short listEntries(byte[] buffer, short fromEntryNumber, byte mode) {
+		return entries.list(buffer, ZERO, fromEntryNumber, mode);
 	}
 }
@@ -0,0 +1,81 @@
+package fr.securingdata.smartsafe.server;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+
+/**
+ * Table of the short handles referencing the Groups and the Entries.
+ *
+ * A handle is coded on two bytes: the index of its slot in the table followed by the generation of the slot.
+ * The generation is incremented each time the slot is allocated, so that the handle of a deleted item
+ * is detected as stale even if its slot has been reused since.
+ * A handle is resolved in constant time, and the table also records the Group owning each Entry.
+ *
+ * If the table is full, new items are not given any handle (NO_HANDLE) and can only be selected by identifier.
+ *
+ * Each SmartSafe instance owns its table, so that a handle never resolves to an item of another instance.
+ * Each Identity references the table its handle was allocated from.
+ * */
+public class HandleTable implements Constants {
+	private Object[] items, owners;
+	private byte[] generations;
+	private short hint;
+
+	HandleTable() {
+		items = new Object[HANDLE_TABLE_SIZE];
+		owners = new Object[HANDLE_TABLE_SIZE];
+		generations = new byte[HANDLE_TABLE_SIZE];
+	}
+
+	short allocate(Identity item, Group owner) {
+		short i, slot = hint;
+		for (i = ZERO; i < HANDLE_TABLE_SIZE; i++) {
+			if (items[slot] == null) {
+				generations[slot]++;
+				owners[slot] = owner;
+				items[slot] = item;//The slot is only taken once the item is set
+				hint = (short) ((slot + 1) % HANDLE_TABLE_SIZE);
+				return (short) ((slot << 8) | (generations[slot] & 0xFF));
+			}
+			slot = (short) ((slot + 1) % HANDLE_TABLE_SIZE);
+		}
+		return NO_HANDLE;
+	}
+	void release(short handle) {
+		if (isValid(handle))
+			items[slot(handle)] = null;
+	}
+	void setOwner(short handle, Group owner) {
+		if (isValid(handle))
+			owners[slot(handle)] = owner;
+	}
+
+	Group resolveGroup(short handle) {
+		Object item = resolve(handle);
+		if (!(item instanceof Group))
+			ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		return (Group) item;
+	}
+	/**
+	 * Return the Entry referenced by the given handle, which must belong to the given Group.
+	 * */
+	Entry resolveEntry(short handle, Group owner) {
+		Object item = resolve(handle);
+		if (!(item instanceof Entry) || owners[slot(handle)] != owner)
+			ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		return (Entry) item;
+	}
+
+	private short slot(short handle) {
+		return (short) ((handle >> 8) & 0xFF);
+	}
+	private boolean isValid(short handle) {
+		short slot = slot(handle);
+		return slot < HANDLE_TABLE_SIZE && items[slot] != null && generations[slot] == (byte) handle;
+	}
+	private Object resolve(short handle) {
+		if (!isValid(handle))
+			ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		return items[slot(handle)];
+	}
+}
@@ -1,20 +1,38 @@
 package fr.securingdata.smartsafe.server;
 
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
 
+/**
+ * Values are double buffered: a new value is written non atomically in the inactive (shadow) buffer,
+ * then the reference to the active buffer is flipped, which is atomic.
+ * Updates are safe against tearing while each byte is written only once, without using the transaction journal.
+ * Values left unchanged, or changed on a short range only, are not rewritten, see WriteFilter.
+ * */
 public abstract class Identity implements Constants {
 	Identity next;
+	short handle = NO_HANDLE;
+	HandleTable handles;//The table the handle has been allocated from
 	protected byte[] identifier;
+	private byte[] shadow;
 	
 	protected Identity() {}
 	
 	public void clear() {
-		Util.arrayFillNonAtomic(identifier, ZERO, (short) identifier.length, ZERO);
-		identifier = null;
+		releaseHandle();
+		wipe(identifier, null);
+		wipe(shadow, identifier);
+		identifier = shadow = null;
 		next = null;
 		JCSystem.requestObjectDeletion();
 	}
+	void releaseHandle() {
+		if (handles != null)
+			handles.release(handle);
+		handle = NO_HANDLE;
+	}
 	public byte getIdentifier(byte[] out, short outOffset) {
 		byte i;
 		for (i = 0; i < identifier.length && identifier[i] != 0; i++)
@@ -22,16 +40,93 @@ public abstract class Identity implements Constants {
 		return i;
 	}
 	public void setIdentifier(byte[] in, short inOffset, short inLen) {
-		if (identifier == null || identifier.length != inLen) {
-			if (identifier != null)
-				JCSystem.requestObjectDeletion();
-			identifier = new byte[inLen];
-		}
-		Util.arrayCopy(in, inOffset, identifier, ZERO, inLen);
+		checkLength(inLen);
+		if (WriteFilter.update(identifier, in, inOffset, inLen, true))
+			return;
+		byte[] tmp = getWritable(identifier, shadow, inLen);
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.write(inLen);
+		Util.arrayCopyNonAtomic(in, inOffset, tmp, ZERO, inLen);
+		swapIdentifier(tmp);
+	}
+	/**
+	 * Refuse an identifier that could not be listed, see List#list(byte[], short, short, byte).
+	 * */
+	static void checkLength(short len) {
+		if (len > IDENTIFIER_MAX_SIZE)
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+	}
+	public void swapIdentifier(byte[] value) {
+		byte[] old = identifier;
+		drop(shadow, old, value);
+		identifier = value;//Flip, the new value is active from now
+		shadow = old;
+		release(old, value);
 	}
 	public boolean isEqual(byte[] cmp, short cmpOffset, short cmpLen) {
 		if (identifier.length != cmpLen)
 			return false;
 		return Util.arrayCompare(identifier, ZERO, cmp, cmpOffset, cmpLen) == 0;
 	}
+	
+	/**
+	 * Alphabetical comparison of the identifiers, ASCII letters being compared regardless of their case.
+	 * 
+	 * return: a negative value, zero or a positive value if this identifier is respectively before, equal or after the other one.
+	 * */
+	public short compareTo(Identity other) {
+		byte[] cmp = other.identifier;
+		short i, a, b;
+		for (i = ZERO; i < (short) identifier.length && i < (short) cmp.length; i++) {
+			a = toUpper(identifier[i]);
+			b = toUpper(cmp[i]);
+			if (a != b)
+				return (short) (a - b);
+		}
+		return (short) (identifier.length - cmp.length);
+	}
+	private static short toUpper(byte c) {
+		short s = (short) (c & 0xFF);
+		if (s >= 'a' && s <= 'z')
+			s -= (short) ('a' - 'A');
+		return s;
+	}
+	
+	/**
+	 * Return a buffer of len bytes that can be written non atomically: the shadow buffer when its length fits, a new one otherwise.
+	 * After a tearing between the two reference updates of a swap, the shadow references the active buffer: it is not reused then.
+	 * Within a transaction, the same value must not be written twice as the second write would target the value restored on abort.
+	 * */
+	protected static byte[] getWritable(byte[] active, byte[] shadow, short len) {
+		if (shadow != null && shadow != active && shadow.length == len)
+			return shadow;
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.allocate(len);
+		return new byte[len];
+	}
+	/**
+	 * Wipe the shadow superseded by a swap, unless it is the previous or the new value.
+	 * */
+	protected static void drop(byte[] shadow, byte[] old, byte[] value) {
+		if (shadow == null || shadow == old || shadow == value)
+			return;
+		wipe(shadow, null);
+		JCSystem.requestObjectDeletion();
+	}
+	/**
+	 * Wipe the previous value once the new one is active, so that a single copy of the value is left in clear.
+	 * The wiped buffer is kept as shadow and can still be reused by the next write.
+	 * Within a transaction the previous value is restored on abort: it is then left to the caller, see Batch.
+	 * */
+	protected static void release(byte[] old, byte[] value) {
+		if (JCSystem.getTransactionDepth() == 0)
+			wipe(old, value);
+	}
+	protected static void wipe(byte[] buffer, byte[] active) {
+		if (buffer == null || buffer == active)
+			return;
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.write((short) buffer.length);
+		Util.arrayFillNonAtomic(buffer, ZERO, (short) buffer.length, ZERO);
+	}
 }
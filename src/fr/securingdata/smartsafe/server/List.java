@@ -2,10 +2,32 @@ package fr.securingdata.smartsafe.server;
 
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
 import javacard.framework.Util;
 
+/**
+ * Ordered list of Identities, linked through Identity#next.
+ * 
+ * ArrayList is a drop-in alternative storing the references in a growable array,
+ * the backend used for all the lists is selected by ARRAY_BACKED.
+ * 
+ * Whatever the backend, a secondary index sorting the Identities by identifier can be maintained.
+ * The index is only built on the first sorted listing, then it is updated on each add, remove and rename.
+ * */
 public class List implements Constants {
+	static final boolean ARRAY_BACKED = false;
+	private static final short INDEX_INITIAL_CAPACITY = (short) 8;
+	
 	Identity first, last;
+	private Object[] sorted;
+	private short sortedCount;
+	private boolean sortedDirty;
+	
+	public static List create() {
+		if (ARRAY_BACKED)
+			return new ArrayList();
+		return new List();
+	}
 	
 	public void clear() {
 		Identity it = first, next;
@@ -15,6 +37,7 @@ public class List implements Constants {
 			it = next;
 		}
 		first = last = null;
+		dropIndex();
 	}
 	
 	public short size() {
@@ -33,6 +56,18 @@ public class List implements Constants {
 		else
 			last.next = i;
 		last = i;
+		index(i);
+	}
+	
+	public Identity get(short index) {
+		Identity it = first;
+		while (it != null && index != 0) {
+			it = it.next;
+			index--;
+		}
+		if (it == null)
+			ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		return it;
 	}
 	
 	public Identity get(byte[] buffer, short offset, short len) {
@@ -46,6 +81,16 @@ public class List implements Constants {
 		return null;
 	}
 	
+	public boolean contains(Identity elem) {
+		Identity it = first;
+		while (it != null) {
+			if (it == elem)
+				return true;
+			it = it.next;
+		}
+		return false;
+	}
+	
 	public boolean move(Identity elem, byte direction) {
 		//Step 1, discard forbidden cases
 		if (direction != MOVE_UP && direction != MOVE_DOWN)
@@ -94,7 +139,48 @@ public class List implements Constants {
 		return true;
 	}
 	
+	/**
+	 * Copy the references of the Identities in the given array, in the list order.
+	 * return: the number of Identities
+	 * */
+	public short toArray(Object[] out) {
+		short count = ZERO;
+		Identity it = first;
+		while (it != null) {
+			if (count == (short) out.length)
+				ISOException.throwIt(ISO7816.SW_FILE_FULL);
+			out[count] = it;
+			count++;
+			it = it.next;
+		}
+		return count;
+	}
+	
+	/**
+	 * Relink the whole list in a single pass, the i-th Identity of the new order being nodes[order[i]],
+	 * or nodes[i] if order is null.
+	 * The new order must be a permutation of the list and the caller is responsible of the transaction.
+	 * */
+	public void reorder(Object[] nodes, byte[] order, short orderOffset, short count) {
+		short i;
+		Identity it = at(nodes, order, orderOffset, ZERO);
+		first = it;
+		for (i = 1; i < count; i++) {
+			it.next = at(nodes, order, orderOffset, i);
+			it = it.next;
+		}
+		it.next = null;
+		last = it;
+	}
+	protected static Identity at(Object[] nodes, byte[] order, short orderOffset, short i) {
+		if (order != null)
+			i = (short) (order[(short) (orderOffset + i)] & 0xFF);
+		return (Identity) nodes[i];
+	}
+	
 	public void remove(Identity elem) {
+		unindex(elem);
+		
 		//Step 1, handle specific case of removing first element
 		if (elem == first) {
 			first = elem.next;
@@ -120,7 +206,7 @@ public class List implements Constants {
 			last = prev;
 	}
 	
-	public void delete(byte[] buffer, short offset, short len) {
+	public Identity delete(byte[] buffer, short offset, short len) {
 		Identity it = first, prev = null;
 		while (it != null) {
 			if (it.isEqual(buffer, offset, len)) {
@@ -134,23 +220,44 @@ public class List implements Constants {
 				if (prev != null)
 					prev.next = it.next;
 				
+				unindex(it);
 				it.clear();//Cleaning all the data
-				return;//Entry has been deleted, exiting.
+				return it;//Entry has been deleted, exiting.
 			}
 			prev = it;
 			it = it.next;
 		}
 		ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		return null;
+	}
+	
+	/**
+	 * Write the identifiers of the list at the given offset, from the given position, until the buffer reaches 200 bytes.
+	 * 
+	 * mode: LIST_WITH_HANDLES -> each identifier is preceded by the handle of the Identity
+	 *       LIST_SORTED -> the identifiers are written in alphabetical order instead of the user order
+	 * return: the length of the written data, followed by the status word to be returned
+	 * */
+	public short list(byte[] buffer, short offset, short fromEntryNumber, byte mode) {
+		boolean withHandles = (mode & LIST_WITH_HANDLES) != 0;
+		if ((mode & LIST_SORTED) == 0)
+			return listInUserOrder(buffer, offset, fromEntryNumber, withHandles);
+		
+		if (sorted == null || sortedDirty)
+			buildIndex();
+		return list(sorted, fromEntryNumber, sortedCount, buffer, offset, withHandles);
 	}
 	
-	public short list(byte[] buffer, short fromEntryNumber) {
-		short offset = ZERO;
+	protected short listInUserOrder(byte[] buffer, short offset, short fromEntryNumber, boolean withHandles) {
+		short start = offset;
 		
 		Identity it = first;
 		while (it != null && offset < 200) {
 			if (fromEntryNumber != 0)
 				fromEntryNumber--;
 			else {
+				if (withHandles)
+					offset = Util.setShort(buffer, offset, it.handle);
 				buffer[offset] = it.getIdentifier(buffer, (short) (offset + 1));
 				offset += buffer[offset];
 				offset += 1;
@@ -160,6 +267,114 @@ public class List implements Constants {
 		
 		Util.setShort(buffer, offset, it == null ? ISO7816.SW_NO_ERROR : SW_DATA_REMAINING);
 		offset += 2;
-		return offset;
+		return (short) (offset - start);
+	}
+	
+	/**
+	 * Update the position of the given Identity in the sorted index, to be called after updating its identifier.
+	 * */
+	public void reindex(Identity elem) {
+		unindex(elem);
+		index(elem);
+	}
+	
+	protected static short list(Object[] items, short fromEntryNumber, short count, byte[] buffer, short offset, boolean withHandles) {
+		short start = offset, i;
+		Identity it;
+		
+		for (i = fromEntryNumber; i < count && offset < 200; i++) {
+			it = (Identity) items[i];
+			if (withHandles)
+				offset = Util.setShort(buffer, offset, it.handle);
+			buffer[offset] = it.getIdentifier(buffer, (short) (offset + 1));
+			offset += buffer[offset];
+			offset += 1;
+		}
+		
+		Util.setShort(buffer, offset, i >= count ? ISO7816.SW_NO_ERROR : SW_DATA_REMAINING);
+		offset += 2;
+		return (short) (offset - start);
+	}
+	
+	/*
+	 * Sorted index management
+	 * 
+	 * Updating the index requires shifting several references: the index is flagged as dirty during the update
+	 * and rebuilt on the next sorted listing if a tearing occurred.
+	 * */
+	protected void indexAll() {
+		Identity it = first;
+		while (it != null) {
+			insertIndex(it);
+			it = it.next;
+		}
+	}
+	protected void index(Identity elem) {
+		if (sorted == null || sortedDirty)
+			return;
+		sortedDirty = true;
+		insertIndex(elem);
+		sortedDirty = false;
+	}
+	protected void unindex(Identity elem) {
+		if (sorted == null || sortedDirty)
+			return;
+		short i;
+		for (i = ZERO; i < sortedCount && sorted[i] != elem; i++);
+		if (i == sortedCount)
+			return;
+		sortedDirty = true;
+		for (; i < (short) (sortedCount - 1); i++)
+			sorted[i] = sorted[(short) (i + 1)];
+		sortedCount--;
+		sorted[sortedCount] = null;
+		sortedDirty = false;
+	}
+	protected void dropIndex() {
+		sorted = null;
+		sortedCount = ZERO;
+		JCSystem.requestObjectDeletion();
+	}
+	private void buildIndex() {
+		if (sorted == null) {
+			sorted = new Object[INDEX_INITIAL_CAPACITY];
+			if (WriteProfiler.ENABLED)
+				WriteProfiler.allocate((short) (INDEX_INITIAL_CAPACITY * 2));
+		}
+		sortedDirty = true;
+		sortedCount = ZERO;
+		indexAll();
+		//A torn update may have left references beyond the rebuilt index, they would keep deleted Identities alive
+		short i;
+		for (i = sortedCount; i < (short) sorted.length; i++)
+			sorted[i] = null;
+		sortedDirty = false;
+	}
+	protected void insertIndex(Identity elem) {
+		short low = ZERO, high = sortedCount, mid;
+		
+		if (sortedCount == (short) sorted.length) {
+			Object[] tmp = new Object[(short) (sortedCount * 2)];
+			if (WriteProfiler.ENABLED)
+				WriteProfiler.allocate((short) (sortedCount * 4));
+			for (mid = ZERO; mid < sortedCount; mid++)
+				tmp[mid] = sorted[mid];
+			sorted = tmp;
+			JCSystem.requestObjectDeletion();
+		}
+		
+		//Binary search of the insertion position, after the Identities having the same identifier
+		while (low < high) {
+			mid = (short) ((short) (low + high) >> 1);
+			if (((Identity) sorted[mid]).compareTo(elem) <= 0)
+				low = (short) (mid + 1);
+			else
+				high = mid;
+		}
+		
+		for (mid = sortedCount; mid > low; mid--)
+			sorted[mid] = sorted[(short) (mid - 1)];
+		sorted[low] = elem;
+		sortedCount++;
 	}
 }
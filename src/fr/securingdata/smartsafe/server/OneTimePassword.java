@@ -0,0 +1,101 @@
+package fr.securingdata.smartsafe.server;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.Util;
+import javacard.security.CryptoException;
+import javacard.security.MessageDigest;
+
+/**
+ * HOTP (RFC 4226) and TOTP (RFC 6238) computation from a seed stored in an Entry.
+ *
+ * HMAC is computed over MessageDigest as HMAC signatures are not available on all cards.
+ * The seed is only XORed in the transient scratch, which is wiped after each computation.
+ * The decimal code is computed by dividing the truncated value byte per byte, without int support.
+ * */
+public class OneTimePassword implements Constants {
+	public static final byte ALG_SHA1   = (byte) 0x01;
+	public static final byte ALG_SHA256 = (byte) 0x02;
+
+	public static final byte MIN_DIGITS = (byte) 6;
+	public static final byte MAX_DIGITS = (byte) 10;//The truncated value is coded on 31 bits
+
+	private static final short BLOCK_SIZE    = (short) 64;//Same block size for SHA-1 and SHA-256
+	private static final short HASH_OFFSET   = BLOCK_SIZE;
+	private static final short VALUE_OFFSET  = (short) (HASH_OFFSET + 32);
+	private static final short WORKING_SIZE  = (short) (VALUE_OFFSET + 8);
+	private static final byte IPAD           = (byte) 0x36;
+	private static final byte OPAD           = (byte) 0x5C;
+
+	private MessageDigest sha1, sha256;
+	private byte[] workingArray;
+
+	public OneTimePassword(byte[] scratch) {
+		sha1 = MessageDigest.getInstance(MessageDigest.ALG_SHA, false);
+		try {
+			sha256 = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+		} catch (CryptoException e) {
+			sha256 = null;//HMAC-SHA256 not supported by this card
+		}
+		workingArray = scratch;//All the offsets of the working array are relative to Scratch.OTP_OFFSET (0)
+	}
+
+	/**
+	 * Compute a HOTP code.
+	 *
+	 * input: the 8 bytes counter in the given buffer
+	 * output: the code as ASCII digits
+	 * return: the number of digits
+	 * */
+	public short hotp(byte[] seed, byte algorithm, byte[] counter, short counterOffset, byte digits, byte[] out, short outOffset) {
+		MessageDigest md = algorithm == ALG_SHA1 ? sha1 : (algorithm == ALG_SHA256 ? sha256 : null);
+		if (md == null)
+			ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+		if (digits < MIN_DIGITS || digits > MAX_DIGITS)
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		if (seed == null || (short) seed.length > BLOCK_SIZE)
+			ISOException.throwIt(ISO7816.SW_DATA_INVALID);//Seeds longer than a block are not supported
+		short i, hashLen = md.getLength();
+
+		//Inner hash: H((K ^ ipad) || counter)
+		Util.arrayCopyNonAtomic(counter, counterOffset, workingArray, VALUE_OFFSET, (short) 8);
+		Util.arrayFillNonAtomic(workingArray, ZERO, BLOCK_SIZE, IPAD);
+		for (i = ZERO; i < (short) seed.length; i++)
+			workingArray[i] ^= seed[i];
+		md.reset();
+		md.update(workingArray, ZERO, BLOCK_SIZE);
+		md.doFinal(workingArray, VALUE_OFFSET, (short) 8, workingArray, HASH_OFFSET);
+
+		//Outer hash: H((K ^ opad) || inner hash)
+		for (i = ZERO; i < BLOCK_SIZE; i++)
+			workingArray[i] ^= (byte) (IPAD ^ OPAD);
+		md.update(workingArray, ZERO, BLOCK_SIZE);
+		md.doFinal(workingArray, HASH_OFFSET, hashLen, workingArray, HASH_OFFSET);
+
+		//Dynamic truncation, the 31 bits value is moved to the value area
+		i = (short) (HASH_OFFSET + (workingArray[(short) (HASH_OFFSET + hashLen - 1)] & 0x0F));
+		Util.arrayCopyNonAtomic(workingArray, i, workingArray, VALUE_OFFSET, (short) 4);
+		workingArray[VALUE_OFFSET] &= (byte) 0x7F;
+
+		//Code = value mod 10^digits, computed from the least significant digit
+		for (i = (short) (outOffset + digits - 1); i >= outOffset; i--)
+			out[i] = (byte) ('0' + divide(workingArray, VALUE_OFFSET, (short) 4, (byte) 10));
+
+		Util.arrayFillNonAtomic(workingArray, ZERO, WORKING_SIZE, ZERO);
+		return digits;
+	}
+
+	/**
+	 * Divide in place the unsigned big endian number by the given divisor, lower than 128.
+	 * return: the remainder
+	 * */
+	public static byte divide(byte[] number, short offset, short len, byte divisor) {
+		short i, rem = ZERO;
+		for (i = offset; i < (short) (offset + len); i++) {
+			rem = (short) ((rem << 8) | (number[i] & 0xFF));
+			number[i] = (byte) (rem / divisor);
+			rem = (short) (rem % divisor);
+		}
+		return (byte) rem;
+	}
+}
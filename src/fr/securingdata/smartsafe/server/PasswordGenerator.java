@@ -0,0 +1,102 @@
+package fr.securingdata.smartsafe.server;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.Util;
+import javacard.security.RandomData;
+
+/**
+ * Generation of random passwords from a set of character classes.
+ *
+ * Each character is drawn uniformly among the characters of the requested classes, by rejection sampling of random bytes:
+ * the bytes above the greatest multiple of the number of characters are discarded, so that the modulo is not biased.
+ * A password missing one of the requested classes is drawn again as a whole, which keeps the draw uniform among the valid passwords.
+ * */
+public class PasswordGenerator implements Constants {
+	public static final byte CLASS_LOWER   = (byte) 0x01;
+	public static final byte CLASS_UPPER   = (byte) 0x02;
+	public static final byte CLASS_DIGITS  = (byte) 0x04;
+	public static final byte CLASS_SYMBOLS = (byte) 0x08;
+	private static final byte CLASS_ALL    = (byte) 0x0F;
+
+	private static final byte[] SYMBOLS = {'!', '#', '$', '%', '&', '*', '+', '-', '.', '/', ':', '=', '?', '@', '_', '~'};
+
+	private RandomData random;
+	private byte[] scratch;
+
+	public PasswordGenerator(RandomData random, byte[] scratch) {
+		this.random = random;
+		this.scratch = scratch;
+	}
+
+	/**
+	 * Write a password of len characters, containing at least one character of each requested class.
+	 *
+	 * classes: combination of the CLASS_* flags
+	 * return: the length of the password
+	 * */
+	public short generate(byte classes, short len, byte[] out, short outOffset) {
+		if (classes == 0 || (classes & ~CLASS_ALL) != 0)
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		short i, r, size = ZERO, nbClasses = ZERO;
+		byte c, seen;
+		for (c = CLASS_LOWER; c <= CLASS_SYMBOLS; c = (byte) (c << 1)) {
+			if ((classes & c) != 0) {
+				size += count(c);
+				nbClasses++;
+			}
+		}
+		if (len < nbClasses || len > DATA_PART_MAX_SIZE)
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+		short limit = (short) (256 - 256 % size), pool = Scratch.GENERATE_LENGTH;
+		do {
+			seen = 0;
+			for (i = ZERO; i < len; i++) {
+				do {
+					if (pool == Scratch.GENERATE_LENGTH) {
+						random.generateData(scratch, Scratch.GENERATE_OFFSET, Scratch.GENERATE_LENGTH);
+						pool = ZERO;
+					}
+					r = (short) (scratch[(short) (Scratch.GENERATE_OFFSET + pool++)] & 0xFF);
+				} while (r >= limit);
+				r = (short) (r % size);
+
+				//Find the class of the drawn character
+				for (c = CLASS_LOWER; (classes & c) == 0 || r >= count(c); c = (byte) (c << 1)) {
+					if ((classes & c) != 0)
+						r -= count(c);
+				}
+				seen |= c;
+				out[(short) (outOffset + i)] = charAt(c, r);
+			}
+		} while (seen != classes);
+
+		Util.arrayFillNonAtomic(scratch, Scratch.GENERATE_OFFSET, Scratch.GENERATE_LENGTH, ZERO);
+		return len;
+	}
+
+	private static short count(byte c) {
+		switch (c) {
+			case CLASS_LOWER:
+			case CLASS_UPPER:
+				return (short) 26;
+			case CLASS_DIGITS:
+				return (short) 10;
+			default:
+				return (short) SYMBOLS.length;
+		}
+	}
+	private static byte charAt(byte c, short index) {
+		switch (c) {
+			case CLASS_LOWER:
+				return (byte) ('a' + index);
+			case CLASS_UPPER:
+				return (byte) ('A' + index);
+			case CLASS_DIGITS:
+				return (byte) ('0' + index);
+			default:
+				return SYMBOLS[index];
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package fr.securingdata.smartsafe.server;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+
+/**
+ * Table of the preconditions of the commands, indexed by INS and by the secured bit of CLA.
+ *
+ * Each rule is a mask of the conditions required by the command:
+ * 	- the high byte is the required security level, coded as returned by SCP03#getSecurityLevel()
+ * 	- the low byte gathers the user, selection and parameters conditions
+ * The current state is coded the same way, so that all the conditions are checked with a single masked test.
+ * The rules which cannot be expressed as a mask (set of allowed p2 values for instance) are checked by the commands themselves.
+ *
+ * All the secured commands require C-MAC. Commands transporting the PIN or data values require encrypted commands,
+ * commands returning data values or codes require encrypted responses.
+ *
+ * Commands not declared require an authenticated user, without any other condition.
+ * */
+public class Preconditions implements Constants {
+	static final short PIN_VALIDATED  = (short) 0x0001;
+	static final short GROUP_SELECTED = (short) 0x0002;
+	static final short ENTRY_SELECTED = (short) 0x0004;
+	static final short P1_ZERO        = (short) 0x0008;
+	static final short P2_ZERO        = (short) 0x0010;
+	static final short P1_INDEX       = (short) 0x0020;//p1 is the index of a data of the selected Entry
+	static final short P1_FIELD       = (short) 0x0040;//p1 is the index of a data of the selected Entry, except the password (0)
+	static final short P1_IDENTIFIER  = (short) 0x0080;//p1 is the index of a data of the selected Entry, or FF for its identifier
+
+	static final short AUTHENTICATED  = (short) ((SEC_AUTHENTICATED & 0xFF) << 8);
+	static final short C_MAC          = (short) (SEC_C_MAC << 8);
+	static final short C_DEC          = (short) (SEC_C_DEC << 8);
+	static final short R_MAC          = (short) (SEC_R_MAC << 8);
+	static final short R_ENC          = (short) (SEC_R_ENC << 8);
+
+	static final short USER           = (short) (AUTHENTICATED | PIN_VALIDATED);
+	static final short SM             = (short) (USER | C_MAC);
+	static final short SM_DATA_IN     = (short) (SM | C_DEC);
+	static final short SM_DATA_OUT    = (short) (SM | C_DEC | R_MAC | R_ENC);
+
+	private static final short SECURITY_MASK  = (short) (0xFF00 | PIN_VALIDATED);
+	private static final short SELECTION_MASK = (short) (GROUP_SELECTED | ENTRY_SELECTED);
+	private static final short SECURED_INDEX  = (short) 0x40;
+	private static final short TABLE_SIZE     = (short) 0x80;
+
+	private static short[] rules;
+
+	static void init() {
+		short i;
+		rules = new short[TABLE_SIZE];
+		for (i = ZERO; i < TABLE_SIZE; i++)
+			rules[i] = USER;
+
+		declare(CLA_SEC_INS_AUTHENTICATE,    (short) (AUTHENTICATED | C_MAC | C_DEC));
+		declare(CLA_SEC_INS_CHANGE_PIN,      (short) (SM_DATA_IN | P1_ZERO | P2_ZERO));
+		declare(CLA_SEC_INS_AVAILABLE,       SM);
+		declare(CLA_INS_MANAGE_BATCH,        (short) (USER | P2_ZERO));
+		declare(CLA_INS_RESERVE,             USER);
+
+		declare(CLA_INS_CREATE_GROUP,        (short) (USER | P1_ZERO | P2_ZERO));
+		declare(CLA_INS_DELETE_GROUP,        (short) (USER | P1_ZERO | P2_ZERO));
+		declare(CLA_INS_LIST_GROUPS,         USER);
+		declare(CLA_INS_SELECT_GROUP,        (short) (USER | P1_ZERO));
+		declare(CLA_INS_GET_STATS,           (short) (USER | P2_ZERO));
+		declare(CLA_INS_RENAME_GROUP,        (short) (USER | GROUP_SELECTED | P1_ZERO | P2_ZERO));
+		declare(CLA_INS_MOVE_GROUP,          (short) (USER | GROUP_SELECTED | P2_ZERO));
+		declare(CLA_INS_REORDER_GROUPS,      (short) (USER | P1_ZERO));
+		declare(CLA_INS_CLEANUP,             (short) (USER | P1_ZERO | P2_ZERO));
+
+		declare(CLA_SEC_INS_ADD_ENTRY,       (short) (SM | GROUP_SELECTED | P2_ZERO));
+		declare(CLA_SEC_INS_DELETE_ENTRY,    (short) (SM | GROUP_SELECTED | P1_ZERO | P2_ZERO));
+		declare(CLA_SEC_INS_LIST_ENTRIES,    (short) (SM | GROUP_SELECTED));
+		declare(CLA_SEC_INS_SELECT_ENTRY,    (short) (SM | GROUP_SELECTED | P1_ZERO));
+		declare(CLA_SEC_INS_GET_DATA,        (short) (SM_DATA_OUT | ENTRY_SELECTED | P1_INDEX | P2_ZERO));
+		declare(CLA_SEC_INS_SET_DATA,        (short) (SM_DATA_IN | ENTRY_SELECTED | P1_IDENTIFIER | P2_ZERO));
+		declare(CLA_INS_GET_DATA,            (short) (USER | ENTRY_SELECTED | P1_FIELD | P2_ZERO));
+		declare(CLA_INS_SET_DATA,            (short) (USER | ENTRY_SELECTED | P1_FIELD | P2_ZERO));
+		declare(CLA_INS_MOVE_ENTRY,          (short) (USER | ENTRY_SELECTED | P2_ZERO));
+		declare(CLA_SEC_INS_SET_MULTI_DATA,  (short) (SM_DATA_IN | ENTRY_SELECTED | P1_ZERO | P2_ZERO));
+		declare(CLA_SEC_INS_RESIZE_ENTRY,    (short) (SM | ENTRY_SELECTED | P2_ZERO));
+		declare(CLA_SEC_INS_GET_DATA_PART,   (short) (SM_DATA_OUT | ENTRY_SELECTED | P1_INDEX | P2_ZERO));
+		declare(CLA_SEC_INS_SET_DATA_PART,   (short) (SM_DATA_IN | ENTRY_SELECTED | P1_INDEX | P2_ZERO));
+		declare(CLA_SEC_INS_SET_DATA_LENGTH, (short) (SM | ENTRY_SELECTED | P1_INDEX | P2_ZERO));
+		declare(CLA_SEC_INS_READ_SEGMENT,    (short) (SM_DATA_OUT | ENTRY_SELECTED | P1_INDEX | P2_ZERO));
+		declare(CLA_SEC_INS_WRITE_SEGMENT,   (short) (SM_DATA_IN | ENTRY_SELECTED | P1_INDEX | P2_ZERO));
+		declare(CLA_SEC_INS_INIT_ATTACHMENT, (short) (SM | ENTRY_SELECTED | P1_INDEX));
+		declare(CLA_SEC_INS_COMPUTE_OTP,     (short) (SM_DATA_OUT | ENTRY_SELECTED | P1_INDEX));
+		declare(CLA_SEC_INS_CLONE_ENTRY,     (short) (SM | ENTRY_SELECTED | P1_ZERO | P2_ZERO));
+		declare(CLA_SEC_INS_GENERATE,        (short) (SM | ENTRY_SELECTED | P1_INDEX));
+		declare(CLA_INS_REORDER_ENTRIES,     (short) (USER | GROUP_SELECTED | P1_ZERO));
+	}
+
+	/**
+	 * Check at once all the preconditions of the given command.
+	 *
+	 * level: the current security level, see SCP03#getSecurityLevel()
+	 * */
+	static void check(short clains, byte level, boolean validated, Group group, Entry entry, byte p1, byte p2) {
+		short state = (short) ((level & 0xFF) << 8);
+		if (validated)
+			state |= PIN_VALIDATED;
+		if (group != null)
+			state |= GROUP_SELECTED;
+		if (entry != null) {
+			state |= ENTRY_SELECTED;
+			if (p1 == -1)
+				state |= P1_IDENTIFIER;
+			else if (p1 >= 0 && p1 < entry.getNbData()) {
+				state |= (short) (P1_INDEX | P1_IDENTIFIER);
+				if (p1 != 0)
+					state |= P1_FIELD;
+			}
+		}
+		if (p1 == 0)
+			state |= P1_ZERO;
+		if (p2 == 0)
+			state |= P2_ZERO;
+
+		state = (short) (rule(clains) & ~state);//Missing conditions
+		if (state == 0)
+			return;
+		if ((state & SECURITY_MASK) != 0)
+			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		if ((state & SELECTION_MASK) != 0)
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+	}
+
+	private static void declare(short clains, short rule) {
+		rules[index(clains)] = rule;
+	}
+	private static short rule(short clains) {
+		short index = index(clains);
+		return index < TABLE_SIZE ? rules[index] : USER;
+	}
+	private static short index(short clains) {
+		short ins = (short) (clains & 0xFF);
+		if (ins >= SECURED_INDEX)
+			return TABLE_SIZE;//Out of the table
+		return (byte) (clains >> 8) == CLA_SECURED ? (short) (ins | SECURED_INDEX) : ins;
+	}
+}
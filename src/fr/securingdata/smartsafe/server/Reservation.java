@@ -0,0 +1,152 @@
+package fr.securingdata.smartsafe.server;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.SystemException;
+import javacard.framework.Util;
+
+/**
+ * Pools of Groups and Entries allocated in advance, so that a bulk import can check its capacity up front.
+ *
+ * A reservation allocates empty Groups and Entries (shells), which are later drawn by the creation commands
+ * instead of being allocated on demand. A reservation is all or nothing: if the shells cannot all be allocated,
+ * or if the remaining persistent memory is lower than the requested amount of field data, the shells just allocated are released.
+ *
+ * The field data are still allocated on demand, as their lengths are only known when they are written:
+ * the amount requested for them is only checked at reservation time.
+ * Shells drawn from the pool are given their handle on activation, reserved shells do not use any slot of the HandleTable.
+ * Each SmartSafe instance owns its pools.
+ *
+ * An Entry shell is only drawn for an Entry with its number of data, as resizing it would allocate.
+ * The creation of an Entry is thus only guaranteed if its number of data is the one given at reservation time,
+ * other Entries are allocated on demand.
+ * */
+public class Reservation implements Constants {
+	private Object[] groups, entries;
+	private short nbGroups, nbEntries;
+	private short[] memory;
+
+	Reservation() {
+		memory = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_RESET);
+	}
+
+	short getNbGroups() {
+		return nbGroups;
+	}
+	short getNbEntries() {
+		return nbEntries;
+	}
+
+	/**
+	 * Write the available memory of the given type coded on four bytes, without saturation.
+	 * */
+	short getAvailableMemory(byte memoryType, byte[] buffer, short offset) {
+		JCSystem.getAvailableMemory(memory, ZERO, memoryType);
+		Util.setShort(buffer, offset, memory[0]);
+		Util.setShort(buffer, (short) (offset + 2), memory[1]);
+		return (short) 4;
+	}
+
+	/**
+	 * Allocate nbNewGroups Groups and nbNewEntries Entries of nbData data,
+	 * then check that dataLen bytes of persistent memory are still available.
+	 * dataLen is coded on four bytes in the given buffer.
+	 * */
+	void reserve(short nbNewGroups, short nbNewEntries, byte nbData, byte[] dataLen, short dataLenOffset) {
+		if (nbNewGroups < 0 || nbNewEntries < 0 || nbData < 0)
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		if ((short) (nbGroups + nbNewGroups) < 0 || (short) (nbEntries + nbNewEntries) < 0)
+			ISOException.throwIt(ISO7816.SW_FILE_FULL);
+
+		Object[] newGroups = null, newEntries = null;
+		short i;
+		try {
+			newGroups = grow(groups, nbGroups, nbNewGroups);
+			newEntries = grow(entries, nbEntries, nbNewEntries);
+			for (i = nbGroups; i < (short) (nbGroups + nbNewGroups); i++)
+				newGroups[i] = new Group();
+			for (i = nbEntries; i < (short) (nbEntries + nbNewEntries); i++)
+				newEntries[i] = new Entry(nbData);
+		} catch (SystemException e) {
+			newGroups = newEntries = null;
+			JCSystem.requestObjectDeletion();
+			ISOException.throwIt(ISO7816.SW_FILE_FULL);
+		}
+
+		JCSystem.getAvailableMemory(memory, ZERO, JCSystem.MEMORY_TYPE_PERSISTENT);
+		short high = Util.getShort(dataLen, dataLenOffset), low = Util.getShort(dataLen, (short) (dataLenOffset + 2));
+		if (lowerUnsigned(memory[0], high) || (memory[0] == high && lowerUnsigned(memory[1], low))) {
+			newGroups = newEntries = null;
+			JCSystem.requestObjectDeletion();
+			ISOException.throwIt(ISO7816.SW_FILE_FULL);
+		}
+
+		JCSystem.beginTransaction();
+		groups = newGroups;
+		entries = newEntries;
+		nbGroups += nbNewGroups;
+		nbEntries += nbNewEntries;
+		JCSystem.commitTransaction();
+		JCSystem.requestObjectDeletion();
+	}
+	/**
+	 * Drop all the shells not used yet.
+	 * */
+	void release() {
+		JCSystem.beginTransaction();
+		groups = entries = null;
+		nbGroups = nbEntries = ZERO;
+		JCSystem.commitTransaction();
+		JCSystem.requestObjectDeletion();
+	}
+
+	/**
+	 * Return a reserved Group, or a newly allocated one if none is reserved.
+	 * The Group is not named yet.
+	 * */
+	Group takeGroup() {
+		if (nbGroups == 0)
+			return new Group();
+		//If torn, the shell is lost but never shared
+		nbGroups--;
+		Group group = (Group) groups[nbGroups];
+		groups[nbGroups] = null;
+		return group;
+	}
+	/**
+	 * Return a reserved Entry of nbData data, or a newly allocated one if none is reserved with this number of data.
+	 * */
+	Entry takeEntry(byte nbData) {
+		short i, last = (short) (nbEntries - 1);
+		Entry entry;
+		for (i = last; i >= 0; i--) {
+			entry = (Entry) entries[i];
+			if (entry.getNbData() != nbData)
+				continue;
+			//The last shell takes the place of the drawn one, both updates must be done together
+			JCSystem.beginTransaction();
+			entries[i] = entries[last];
+			entries[last] = null;
+			nbEntries = last;
+			JCSystem.commitTransaction();
+			return entry;
+		}
+		return new Entry(nbData);
+	}
+
+	private static Object[] grow(Object[] pool, short size, short nbNew) {
+		if (nbNew == 0)
+			return pool;
+		Object[] tmp = new Object[(short) (size + nbNew)];
+		short i;
+		for (i = ZERO; i < size; i++)
+			tmp[i] = pool[i];
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.allocate((short) (tmp.length * 4));
+		return tmp;
+	}
+	private static boolean lowerUnsigned(short a, short b) {
+		return (short) (a ^ (short) 0x8000) < (short) (b ^ (short) 0x8000);
+	}
+}
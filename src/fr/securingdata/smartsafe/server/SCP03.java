@@ -26,28 +26,43 @@ public class SCP03 implements Constants {
 	private static final byte SMAC_DERIVATION_CSTE        = 0x06;
 	private static final byte RMAC_DERIVATION_CSTE        = 0x07;
 	
-	private byte[] status;
+	/*
+	 * The secure channel state is kept per logical channel:
+	 * - status, MAC chaining value, encryption counter and session keys are indexed by the channel number
+	 * - the challenges exchanged in Initialize Update are saved per channel until External Authenticate
+	 * - the security level negotiated in External Authenticate is kept per channel
+	 * The working array is only used within the processing of a command and is shared by all the channels.
+	 * */
+	private byte[] status, levels;
 	private byte[] workingArray;
-	private byte[] macChaining, encryptionCounter;
+	private byte[] macChaining, encryptionCounter, challenges;
 	private RandomData random;
 	private Signature aesCMac;
 	private Cipher aesCBC;
-	private AESKey kMac, kEnc, sMac, sEnc, sRMac;
+	private AESKey kMac, kEnc;
+	private AESKey[] sMac, sEnc, sRMac;
 	
-	public SCP03() {
-		status = JCSystem.makeTransientByteArray((short) 1, JCSystem.CLEAR_ON_DESELECT);
-		workingArray = JCSystem.makeTransientByteArray((short) 64, JCSystem.CLEAR_ON_DESELECT);
-		macChaining = JCSystem.makeTransientByteArray((short) 16, JCSystem.CLEAR_ON_DESELECT);
-		encryptionCounter = JCSystem.makeTransientByteArray((short) 16, JCSystem.CLEAR_ON_DESELECT);
+	public SCP03(byte[] scratch) {
+		status = JCSystem.makeTransientByteArray(MAX_CHANNELS, JCSystem.CLEAR_ON_DESELECT);
+		levels = JCSystem.makeTransientByteArray(MAX_CHANNELS, JCSystem.CLEAR_ON_DESELECT);
+		workingArray = scratch;//All the offsets of the working array are relative to Scratch.SCP_OFFSET (0)
+		macChaining = JCSystem.makeTransientByteArray((short) (16 * MAX_CHANNELS), JCSystem.CLEAR_ON_DESELECT);
+		encryptionCounter = JCSystem.makeTransientByteArray((short) (16 * MAX_CHANNELS), JCSystem.CLEAR_ON_DESELECT);
+		challenges = JCSystem.makeTransientByteArray((short) (16 * MAX_CHANNELS), JCSystem.CLEAR_ON_DESELECT);
 		random = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
-		aesCMac = new AESCMac128();
+		aesCMac = new AESCMac128(scratch);
 		aesCBC = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
 		
 		kMac = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
 		kEnc = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
-		sMac = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
-		sEnc = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
-		sRMac = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+		sMac = new AESKey[MAX_CHANNELS];
+		sEnc = new AESKey[MAX_CHANNELS];
+		sRMac = new AESKey[MAX_CHANNELS];
+		for (byte i = 0; i < MAX_CHANNELS; i++) {
+			sMac[i] = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+			sEnc[i] = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+			sRMac[i] = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+		}
 	}
 	
 	public void setKeys(byte[] buffer, short offset) {
@@ -55,8 +70,14 @@ public class SCP03 implements Constants {
 		kMac.setKey(buffer, (short) (offset + 16));
 	}
 	
+	private byte channel() {
+		return JCSystem.getAssignedChannel();
+	}
+	private short channelOffset() {
+		return (short) (16 * JCSystem.getAssignedChannel());
+	}
 	private boolean isAuthenticated() {
-		return status[ZERO] == STATUS_AUTHENTICATED;
+		return status[channel()] == STATUS_AUTHENTICATED;
 	}
 	private void error() {
 		resetSecurity();
@@ -71,10 +92,11 @@ public class SCP03 implements Constants {
 		Util.arrayFillNonAtomic(workingArray, DERIVATION_DATA_OFFSET, (short) 16, ZERO);
 		Util.arrayCopy(buffer, ISO7816.OFFSET_CDATA, workingArray, DERIVATION_DATA_HOST_CHALL_OFFSET, (byte) 8);
 		random.generateData(workingArray, DERIVATION_DATA_CARD_CHALL_OFFSET, (short) 8);
+		Util.arrayCopyNonAtomic(workingArray, DERIVATION_DATA_HOST_CHALL_OFFSET, challenges, channelOffset(), (short) 16);
 		computeSessionKeys();
 		
 		computeDerivationScheme(CARD_CRYPTO_DERIVATION_CSTE);
-		aesCMac.init(sMac, Signature.MODE_SIGN);
+		aesCMac.init(sMac[channel()], Signature.MODE_SIGN);
 		aesCMac.sign(workingArray, DERIVATION_DATA_OFFSET, (short) 32, workingArray, ZERO);
 		
 		//Response
@@ -85,57 +107,86 @@ public class SCP03 implements Constants {
 		Util.arrayCopyNonAtomic(workingArray, DERIVATION_DATA_CARD_CHALL_OFFSET, buffer, (short) (ISO7816.OFFSET_CDATA + 13), (byte) 8);
 		Util.arrayCopyNonAtomic(workingArray, ZERO/*Card crypto offset*/, buffer, (short) (ISO7816.OFFSET_CDATA + 21), (byte) 8);
 		
-		status[ZERO] = STATUS_INITIATED;
+		status[channel()] = STATUS_INITIATED;
 	}
-	private void externalAuth(APDU apdu) {
-		if (status[ZERO] != STATUS_INITIATED)
+	/**
+	 * The data may contain an encrypted PIN block between the host cryptogram and the MAC,
+	 * so that the PIN is verified without an additional command.
+	 * The PIN block is encrypted as the data of a command (C-DECRYPTION), whatever the negotiated security level.
+	 * 
+	 * return: the length of the decrypted PIN, written after the host cryptogram, or 0 if no PIN is transmitted
+	 * */
+	private short externalAuth(APDU apdu) {
+		if (status[channel()] != STATUS_INITIATED)
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		
 		byte[] buffer = apdu.getBuffer();
-		if (buffer[ISO7816.OFFSET_P1] != 0x33)
-			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
-		if (apdu.setIncomingAndReceive() != 16)
+		byte level = buffer[ISO7816.OFFSET_P1];
+		switch (level) {
+			case SEC_C_MAC:
+			case SEC_C_MAC | SEC_C_DEC:
+			case SEC_C_MAC | SEC_R_MAC:
+			case SEC_C_MAC | SEC_C_DEC | SEC_R_MAC:
+			case SEC_C_MAC | SEC_C_DEC | SEC_R_MAC | SEC_R_ENC:
+				break;
+			default:
+				ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+		short lc = apdu.setIncomingAndReceive();
+		if (lc < 16 || (lc & 0x0F) != 0)//Host cryptogram, PIN block made of AES blocks, MAC
 			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 		
+		//Restore the derivation data of this channel, the working array may have been used by another channel
+		Util.arrayFillNonAtomic(workingArray, DERIVATION_DATA_OFFSET, (short) 16, ZERO);
+		Util.arrayCopyNonAtomic(challenges, channelOffset(), workingArray, DERIVATION_DATA_HOST_CHALL_OFFSET, (short) 16);
 		computeDerivationScheme(HOST_CRYPTO_DERIVATION_CSTE);
-		aesCMac.init(sMac, Signature.MODE_SIGN);
+		aesCMac.init(sMac[channel()], Signature.MODE_SIGN);
 		aesCMac.sign(workingArray, DERIVATION_DATA_OFFSET, (short) 32, workingArray, ZERO);
 		if (Util.arrayCompare(buffer, ISO7816.OFFSET_CDATA, workingArray, ZERO, (short) 8) != 0)
 			error();
-		checkMac(buffer, (short) 16);
+		checkMac(buffer, lc);
+		
+		levels[channel()] = level;
+		status[channel()] = STATUS_AUTHENTICATED;
 		
-		status[ZERO] = STATUS_AUTHENTICATED;
+		if (lc == 16)
+			return 0;
+		incrementEncryptionCounter();
+		return decrypt(buffer, (short) (ISO7816.OFFSET_CDATA + 8), (short) (lc - 16));
 	}
 	
 	private void incrementEncryptionCounter() {
-		for (short s = (short) (encryptionCounter.length - 1); s >= 0; s--) {
+		short offset = channelOffset();
+		for (short s = (short) (offset + 15); s >= offset; s--) {
 			encryptionCounter[s]++;
 			if(encryptionCounter[s] != 0)
 				return;
 		}
 	}
 	private void checkMac(byte[] buffer, short dataLen) {
-		aesCMac.init(sMac, Signature.MODE_SIGN);
-		aesCMac.update(macChaining, ZERO, (short) 16);
-		aesCMac.sign(buffer, ZERO, (short) (5 + dataLen - 8), macChaining, ZERO);
-		if (Util.arrayCompare(buffer, (short) (5 + dataLen - 8), macChaining, ZERO, (short) 8) != 0)
+		short offset = channelOffset();
+		aesCMac.init(sMac[channel()], Signature.MODE_SIGN);
+		aesCMac.update(macChaining, offset, (short) 16);
+		aesCMac.sign(buffer, ZERO, (short) (5 + dataLen - 8), macChaining, offset);
+		if (Util.arrayCompare(buffer, (short) (5 + dataLen - 8), macChaining, offset, (short) 8) != 0)
 			error();
 	}
 	private void computeSessionKeys() {
+		byte channel = channel();
 		computeDerivationScheme(SENC_DERIVATION_CSTE);
 		aesCMac.init(kEnc, Signature.MODE_SIGN);
 		aesCMac.sign(workingArray, DERIVATION_DATA_OFFSET, (short) 32, workingArray, (short) 0);
-		sEnc.setKey(workingArray, (short) 0);
+		sEnc[channel].setKey(workingArray, (short) 0);
 		
 		computeDerivationScheme(SMAC_DERIVATION_CSTE);
 		aesCMac.init(kMac, Signature.MODE_SIGN);
 		aesCMac.sign(workingArray, DERIVATION_DATA_OFFSET, (short) 32, workingArray, (short) 0);
-		sMac.setKey(workingArray, (short) 0);
+		sMac[channel].setKey(workingArray, (short) 0);
 		
 		computeDerivationScheme(RMAC_DERIVATION_CSTE);
 		aesCMac.init(kMac, Signature.MODE_SIGN);
 		aesCMac.sign(workingArray, DERIVATION_DATA_OFFSET, (short) 32, workingArray, (short) 0);
-		sRMac.setKey(workingArray, (short) 0);
+		sRMac[channel].setKey(workingArray, (short) 0);
 	}
 	private void computeDerivationScheme(byte derivationCste) {
 		workingArray[(short) (DERIVATION_DATA_OFFSET + 11)] = derivationCste;
@@ -170,22 +221,20 @@ public class SCP03 implements Constants {
 	}
 
 	public byte getSecurityLevel() {
-		if (isAuthenticated()) {//Only one mode is supported in External Authenticate command
-			return (byte) 0xB3;//(AUTHENTICATED | C_MAC | C_DECRYPTION | R_MAC | R_ENCRYPTION);
-		}
+		if (isAuthenticated())//The level negotiated in External Authenticate command
+			return (byte) (SEC_AUTHENTICATED | levels[channel()]);
 		return ZERO;//NO_SECURITY_LEVEL;
 	}
 
 	public short processSecurity(APDU apdu) throws ISOException {
 		byte[] buffer = apdu.getBuffer();
 		
-		switch(Util.getShort(buffer, ISO7816.OFFSET_CLA)) {
+		switch((short) (Util.getShort(buffer, ISO7816.OFFSET_CLA) & CLA_INS_MASK)) {
 			case CLA_INS_INIT_UPDATE:
 				initUpdate(apdu);
 				return (short) 29;
 			case CLA_INS_EXT_AUTH:
-				externalAuth(apdu);
-				break;
+				return externalAuth(apdu);
 			default:
 				ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
 		}
@@ -193,49 +242,72 @@ public class SCP03 implements Constants {
 	}
 
 	public void resetSecurity() {
-		status[ZERO] = STATUS_RESET;
-		Util.arrayFillNonAtomic(macChaining, ZERO, (short) macChaining.length, ZERO);
-		Util.arrayFillNonAtomic(encryptionCounter, ZERO, (short) encryptionCounter.length, ZERO);
+		short offset = channelOffset();
+		status[channel()] = STATUS_RESET;
+		levels[channel()] = ZERO;
+		Util.arrayFillNonAtomic(macChaining, offset, (short) 16, ZERO);
+		Util.arrayFillNonAtomic(encryptionCounter, offset, (short) 16, ZERO);
+		Util.arrayFillNonAtomic(challenges, offset, (short) 16, ZERO);
 	}
 
 	public short unwrap(byte[] buffer, short offset, short lc) throws ISOException {
 		//offset is always set to 0 in SmartSafe context
 		
-		if (status[ZERO] != STATUS_AUTHENTICATED)
+		if (!isAuthenticated())
 			error();
 		
 		//Remove MAC
 		checkMac(buffer, lc);
 		lc -= 8;
 		
-		//Decrypt data
+		//The counter is incremented for every command, whether its data are encrypted or not
 		incrementEncryptionCounter();
-		encryptionCounter[ZERO] = ZERO;
-		aesCBC.init(sEnc, Cipher.MODE_ENCRYPT);
-		aesCBC.doFinal(encryptionCounter, ZERO, (short) 16, workingArray, ZERO);
-		aesCBC.init(sEnc, Cipher.MODE_DECRYPT, workingArray, ZERO, (short) 16);
-		aesCBC.doFinal(buffer, ISO7816.OFFSET_CDATA, lc, buffer, ISO7816.OFFSET_CDATA);
+		if ((levels[channel()] & SEC_C_DEC) == 0) {
+			buffer[(short) 4] = (byte) lc;
+			return lc;
+		}
 		
-		//Remove padding
-		while(buffer[(short) (ISO7816.OFFSET_CDATA + lc - 1)] == ZERO)
-			lc--;
-		if (buffer[(short) (ISO7816.OFFSET_CDATA + lc - 1)] != (byte) 0x80)
-			error();
-		lc--;
+		lc = decrypt(buffer, ISO7816.OFFSET_CDATA, lc);
 		buffer[(short) 4] = (byte) lc;
 		
 		return lc;
 	}
+	/**
+	 * Decrypt in place the data of a command with the current value of the encryption counter.
+	 * return: the length of the data without padding
+	 * */
+	private short decrypt(byte[] buffer, short offset, short len) {
+		encryptionCounter[channelOffset()] = ZERO;
+		aesCBC.init(sEnc[channel()], Cipher.MODE_ENCRYPT);
+		aesCBC.doFinal(encryptionCounter, channelOffset(), (short) 16, workingArray, ZERO);
+		aesCBC.init(sEnc[channel()], Cipher.MODE_DECRYPT, workingArray, ZERO, (short) 16);
+		aesCBC.doFinal(buffer, offset, len, buffer, offset);
+		
+		//Remove padding
+		while(len > 0 && buffer[(short) (offset + len - 1)] == ZERO)
+			len--;
+		if (len == 0 || buffer[(short) (offset + len - 1)] != (byte) 0x80)
+			error();
+		return --len;
+	}
 
 	public short wrap(byte[] buffer, short offset, short len) throws ArrayIndexOutOfBoundsException, ISOException {
 		//offset is always set to 0 in SmartSafe context
 		
-		if (status[ZERO] != STATUS_AUTHENTICATED)
+		if (!isAuthenticated())
 			error();
 		
 		//Extract status word
 		len -= 2;
 		short sw = Util.getShort(buffer, len);
+		byte level = levels[channel()];
+		
+		incrementEncryptionCounter();
+		if ((level & SEC_R_ENC) == 0) {
+			if ((level & SEC_R_MAC) == 0)
+				return len;
+			return rMac(buffer, len, sw);
+		}
 		
 		//Add padding
 		buffer[len] = (byte) 0x80;
@@ -245,16 +317,21 @@ public class SCP03 implements Constants {
 			len++;
 		}
 		
-		incrementEncryptionCounter();
-		encryptionCounter[ZERO] = (byte) 0x80;
-		aesCBC.init(sEnc, Cipher.MODE_ENCRYPT);
-		aesCBC.doFinal(encryptionCounter, ZERO, (short) 16, workingArray, ZERO);
-		aesCBC.init(sEnc, Cipher.MODE_ENCRYPT, workingArray, ZERO, (short) 16);
+		encryptionCounter[channelOffset()] = (byte) 0x80;
+		aesCBC.init(sEnc[channel()], Cipher.MODE_ENCRYPT);
+		aesCBC.doFinal(encryptionCounter, channelOffset(), (short) 16, workingArray, ZERO);
+		aesCBC.init(sEnc[channel()], Cipher.MODE_ENCRYPT, workingArray, ZERO, (short) 16);
 		aesCBC.doFinal(buffer, ZERO, len, buffer, ZERO);
+		return rMac(buffer, len, sw);
+	}
+	/**
+	 * Append the R-MAC computed over the response data and the status word.
+	 * */
+	private short rMac(byte[] buffer, short len, short sw) {
 		Util.setShort(buffer, len, sw);
 		
-		aesCMac.init(sRMac, Signature.MODE_SIGN);
-		aesCMac.update(macChaining, ZERO, (short) 16);
+		aesCMac.init(sRMac[channel()], Signature.MODE_SIGN);
+		aesCMac.update(macChaining, channelOffset(), (short) 16);
 		aesCMac.sign(buffer, ZERO, (short) (len + 2), buffer, len);
 		
 		return (short) (len + 8);
@@ -0,0 +1,38 @@
+package fr.securingdata.smartsafe.server;
+
+import javacard.framework.JCSystem;
+
+/**
+ * Transient scratch pool shared by the whole applet, so that each temporary buffer does not take its own RAM.
+ *
+ * A single CLEAR_ON_DESELECT array is allocated per SmartSafe instance and handed over to each user, which works on a fixed area of it.
+ * Areas only overlap when their users are never active at the same time:
+ *
+ * 	offset  length  user
+ * 	0       64      SCP03: cryptograms, session keys derivation and ICV, during the security commands, unwrap and wrap
+ * 	64      48      AESCMac128: subkeys and CMAC, computed while SCP03 uses its own area
+ * 	0       104     OneTimePassword: HMAC computation, between unwrap and wrap
+ * 	0       32      SmartSafe: bitmap checking the permutation of the reorder commands
+ * 	0       64      PasswordGenerator: random bytes, between unwrap and wrap
+ * 	112     512     SmartSafe: data of a chained command, kept across commands until the chain is complete
+ *
+ * Except the chaining area, no value is kept in the scratch from one command to the next.
+ * */
+public class Scratch implements Constants {
+	static final short SCP_OFFSET      = (short) 0;
+	static final short SCP_LENGTH      = (short) 64;
+	static final short CMAC_OFFSET     = (short) (SCP_OFFSET + SCP_LENGTH);
+	static final short CMAC_LENGTH     = (short) 48;
+	static final short OTP_OFFSET      = (short) 0;
+	static final short OTP_LENGTH      = (short) 104;
+	static final short BITMAP_OFFSET   = (short) 0;
+	static final short BITMAP_LENGTH   = (short) 32;
+	static final short GENERATE_OFFSET = (short) 0;
+	static final short GENERATE_LENGTH = (short) 64;
+	static final short CHAIN_OFFSET    = (short) (CMAC_OFFSET + CMAC_LENGTH);
+	static final short SIZE            = (short) (CHAIN_OFFSET + CHAIN_BUFFER_SIZE);
+
+	static byte[] create() {
+		return JCSystem.makeTransientByteArray(SIZE, JCSystem.CLEAR_ON_DESELECT);
+	}
+}
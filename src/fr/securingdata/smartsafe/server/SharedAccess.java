@@ -0,0 +1,68 @@
+package fr.securingdata.smartsafe.server;
+
+import javacard.framework.AID;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+
+/**
+ * Implementation of SmartSafeShareable, owned by SmartSafe.
+ *
+ * The AID of the calling applet is checked on each call, as the interface may have been handed over to another applet.
+ * */
+public class SharedAccess implements SmartSafeShareable, Constants {
+	private SmartSafe applet;
+	private List groups;
+	private HandleTable handles;
+	private byte[] client;
+
+	SharedAccess(SmartSafe applet, List groups, HandleTable handles, byte[] client) {
+		this.applet = applet;
+		this.groups = groups;
+		this.handles = handles;
+		this.client = client;
+	}
+
+	/**
+	 * return: true if the given applet can get the interface
+	 * */
+	boolean accept(AID aid) {
+		return aid != null && aid.equals(client, ZERO, (byte) client.length);
+	}
+
+	public short getGroup(byte[] name, short offset, byte len) {
+		check();
+		return groups.get(name, offset, len).handle;
+	}
+	public short getEntry(short group, byte[] identifier, short offset, byte len) {
+		check();
+		return group(group).entries.get(identifier, offset, len).handle;
+	}
+	public short getDataLength(short group, short entry, byte index) {
+		return resolve(group, entry, index).getDataLength(index);
+	}
+	public short getData(short group, short entry, byte index, byte[] out, short outOffset) {
+		return resolve(group, entry, index).getData(index, out, outOffset);
+	}
+
+	private void check() {
+		if (!accept(JCSystem.getPreviousContextAID()) || !applet.isPinValidated())
+			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+	}
+	/**
+	 * Return the Group referenced by the given handle, which must be one of the Groups of this instance.
+	 * */
+	private Group group(short handle) {
+		Group g = handles.resolveGroup(handle);
+		if (!groups.contains(g))
+			ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		return g;
+	}
+	private Entry resolve(short group, short entry, byte index) {
+		check();
+		Entry e = handles.resolveEntry(entry, group(group));
+		if (index < 0 || index >= e.getNbData())
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		return e;
+	}
+}
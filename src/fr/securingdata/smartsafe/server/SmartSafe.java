@@ -1,44 +1,161 @@
 package fr.securingdata.smartsafe.server;
 
+import javacard.framework.AID;
 import javacard.framework.APDU;
 import javacard.framework.Applet;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
+import javacard.framework.MultiSelectable;
 import javacard.framework.OwnerPIN;
+import javacard.framework.Shareable;
 import javacard.framework.Util;
 import javacard.security.RandomData;
 
-public class SmartSafe extends Applet implements Constants {
+/**
+ * The applet can be selected on several logical channels at the same time.
+ * Each channel has its own secure channel session and its own Group and Entry selection,
+ * while the PIN validation is shared by all the channels and lasts until the applet is deselected from all of them.
+ * 
+ * A co-resident applet can read the Entries through SmartSafeShareable,
+ * its AID being given as applet data in the install parameters.
+ * */
+public class SmartSafe extends Applet implements MultiSelectable, Constants {
 	private static final byte[] version = {'2', '.', '1', '.', '0'};
+	
+	private static final byte CHAIN_CLAINS_INDEX  = (byte) 0;
+	private static final byte CHAIN_P1P2_INDEX    = (byte) 1;
+	private static final byte CHAIN_LENGTH_INDEX  = (byte) 2;
+	private static final byte CHAIN_CHANNEL_INDEX = (byte) 3;
+	private static final byte CHAIN_STATE_SIZE    = (byte) 4;
 	private SCP03 scp;
 	private OwnerPIN pin;
 	private RandomData random;
+	private OneTimePassword otp;
+	private PasswordGenerator generator;
 	private byte[] transactionBuffer;
+	private Batch batch;
 	
 	private List groups;
 	private Object[] selection;
+	private short[] chainState;
+	private Object[] reorderNodes;
+	private SharedAccess shared;
+	private byte[] scratch;
+	private HandleTable handles;
+	private Reservation reservation;
+	private Cleanup cleanup;
 	
 	public static void install(byte[] bArray, short bOffset, byte bLength) throws ISOException {
-		new SmartSafe().register();
+		SmartSafe applet = new SmartSafe();
+		//Install parameters: instance AID, control information, then applet data
+		bOffset += (short) (bArray[bOffset] + 1);
+		bOffset += (short) (bArray[bOffset] + 1);
+		applet.share(bArray, (short) (bOffset + 1), bArray[bOffset]);
+		applet.register();
 	}
 	
 	public SmartSafe() {
-		scp = new SCP03();
-		groups = new List();
+		scratch = Scratch.create();
+		scp = new SCP03(scratch);
+		groups = List.create();
+		handles = new HandleTable();
+		WriteFilter.init();
+		reservation = new Reservation();
+		Preconditions.init();
+		cleanup = new Cleanup();
 		transactionBuffer = new byte[TRNS_BUFF_MAX_SIZE];
+		batch = new Batch();
 		random = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
-		selection = JCSystem.makeTransientObjectArray((short) 2, JCSystem.CLEAR_ON_RESET);
+		otp = new OneTimePassword(scratch);
+		generator = new PasswordGenerator(random, scratch);
+		selection = JCSystem.makeTransientObjectArray((short) (SELECTION_SIZE * MAX_CHANNELS), JCSystem.CLEAR_ON_RESET);
+		chainState = JCSystem.makeTransientShortArray(CHAIN_STATE_SIZE, JCSystem.CLEAR_ON_RESET);
+		reorderNodes = JCSystem.makeTransientObjectArray(REORDER_MAX_SIZE, JCSystem.CLEAR_ON_RESET);
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.init();
+	}
+	
+	/**
+	 * Allow the applet with the given AID to get the SmartSafeShareable interface.
+	 * Sharing is disabled if no AID is given.
+	 * */
+	private void share(byte[] aid, short offset, byte len) {
+		if (len < 5 || len > 16)
+			return;
+		byte[] client = new byte[len];
+		Util.arrayCopyNonAtomic(aid, offset, client, ZERO, len);
+		shared = new SharedAccess(this, groups, handles, client);
+	}
+	public Shareable getShareableInterfaceObject(AID clientAID, byte parameter) {
+		if (shared == null || !shared.accept(clientAID))
+			return null;
+		return shared;
+	}
+	boolean isPinValidated() {
+		return pin != null && pin.isValidated();
+	}
+	
+	public boolean select() {
+		return select(false);
+	}
+	public boolean select(boolean appInstAlreadyActive) {
+		if (JCSystem.getAssignedChannel() >= MAX_CHANNELS)
+			return false;
+		resetChannel();
+		return true;
+	}
+	public void deselect() {
+		deselect(false);
+	}
+	public void deselect(boolean appInstStillActive) {
+		resetChannel();
+		//The PIN validation ends with the last channel, so that SmartSafeShareable is not left open
+		if (!appInstStillActive && pin != null)
+			pin.reset();
+	}
+	/**
+	 * Transient data are only cleared when the applet is deselected from all the channels,
+	 * the state of a channel is therefore explicitly reset when it is selected or deselected.
+	 * */
+	private void resetChannel() {
+		short offset = (short) (SELECTION_SIZE * JCSystem.getAssignedChannel());
+		selection[(short) (offset + GROUP_INDEX)] = null;
+		selection[(short) (offset + ENTRY_INDEX)] = null;
+		if (chainState[CHAIN_CHANNEL_INDEX] == JCSystem.getAssignedChannel())
+			chainState[CHAIN_CLAINS_INDEX] = ZERO;
+		scp.resetSecurity();
+	}
+	/**
+	 * Remove the given Group or Entry from the selection of all the channels.
+	 * The Entry selection of a channel is also removed when its Group is unselected.
+	 * */
+	private void unselect(Identity elem) {
+		short offset;
+		for (offset = ZERO; offset < (short) selection.length; offset += SELECTION_SIZE) {
+			if (selection[(short) (offset + GROUP_INDEX)] == elem) {
+				selection[(short) (offset + GROUP_INDEX)] = null;
+				selection[(short) (offset + ENTRY_INDEX)] = null;
+			}
+			if (selection[(short) (offset + ENTRY_INDEX)] == elem)
+				selection[(short) (offset + ENTRY_INDEX)] = null;
+		}
 	}
 	
 	public void process(APDU apdu) throws ISOException {
 		byte[] buffer = apdu.getBuffer();
-		short clains = Util.getShort(buffer, ISO7816.OFFSET_CLA);
+		short clains = (short) (Util.getShort(buffer, ISO7816.OFFSET_CLA) & CLA_INS_MASK);
 		byte p1 = buffer[ISO7816.OFFSET_P1];
 		byte p2 = buffer[ISO7816.OFFSET_P2];
-		short lc = 0;
-		Group selectedGroup = (Group) selection[GROUP_INDEX], tmp;
-		Entry selectedEntry = (Entry) selection[ENTRY_INDEX];
+		short lc = 0, offset, dataOffset = ISO7816.OFFSET_CDATA;
+		byte[] data = buffer;//Input data of the command, assembled in the scratch for chained commands
+		short groupIndex = (short) (SELECTION_SIZE * JCSystem.getAssignedChannel() + GROUP_INDEX);
+		short entryIndex = (short) (SELECTION_SIZE * JCSystem.getAssignedChannel() + ENTRY_INDEX);
+		Group selectedGroup = (Group) selection[groupIndex], tmp;
+		Entry selectedEntry = (Entry) selection[entryIndex];
+		
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.begin(clains);
 		
 		/* * * * * * * * * * * * * * * * * * * * * * * 
 		 *                                           *
@@ -46,8 +163,10 @@ public class SmartSafe extends Applet implements Constants {
 		 *                                           *
 		 * 1. Select                                 *
 		 * 2. Get Version                            *
-		 * 3. Initialize PIN                         *
-		 * 4. Manage Transaction                     *
+		 * 3. Bootstrap                              *
+		 * 4. Initialize PIN                         *
+		 * 5. Manage Transaction                     *
+		 * 6. Get Profile (simulator builds only)    *
 		 *                                           *
 		 * * * * * * * * * * * * * * * * * * * * * * */
 		
@@ -61,15 +180,7 @@ public class SmartSafe extends Applet implements Constants {
 		 * 			- 0xDEAD -> the user PIN is blocked (PTC value is 0), the applet cannot be used anymore
 		 * */
 		if (selectingApplet()) {
-			if (pin != null) {
-				if (pin.getTriesRemaining() != 0)
-					Util.setShort(buffer, ZERO, (short) 0xCAFE);
-				else
-					Util.setShort(buffer, ZERO, (short) 0xDEAD);
-			}
-			else {
-				Util.setShort(buffer, ZERO, (short) 0xDECA);
-			}
+			Util.setShort(buffer, ZERO, getLifeCycle());
 			apdu.setOutgoingAndSend(ZERO, (short) 2);
 			return;
 		}
@@ -86,6 +197,60 @@ public class SmartSafe extends Applet implements Constants {
 			return;
 		}
 		
+		/**
+		 * Return at once the state of the applet, in order to start a session with a single command.
+		 * The Groups are only returned once the user is authenticated on this channel.
+		 * 
+		 * input: none
+		 * output: formatted as TLV:
+		 * 			- 80 -> life cycle state, see Select
+		 * 			- 81 -> PIN try counter, if the user PIN has been initialized
+		 * 			- 82 -> version
+		 * 			- 83 -> transaction status, see Manage Transaction
+		 * 			- 84 -> batch status and number of staged updates, see Manage Batch
+		 * 			- 85 -> supported features bitmap, see Constants
+		 * 			- 86 -> number of Groups, if authenticated
+		 * 			- 87 -> first page of the Group names (length coded as 81 xx), if authenticated, see List Groups
+		 * */
+		if (clains == CLA_INS_BOOTSTRAP) {
+			if (p1 != 0 || p2 != 0)
+				ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+			offset = ZERO;
+			buffer[offset++] = TAG_LIFE_CYCLE;
+			buffer[offset++] = (byte) 2;
+			offset = Util.setShort(buffer, offset, getLifeCycle());
+			if (pin != null) {
+				buffer[offset++] = TAG_PIN_TRIES;
+				buffer[offset++] = (byte) 1;
+				buffer[offset++] = pin.getTriesRemaining();
+			}
+			buffer[offset++] = TAG_VERSION;
+			buffer[offset++] = (byte) version.length;
+			offset = Util.arrayCopyNonAtomic(version, ZERO, buffer, offset, (short) version.length);
+			buffer[offset++] = TAG_TRANSACTION;
+			buffer[offset++] = (byte) 1;
+			buffer[offset++] = transactionBuffer[TRNS_BUFF_STATUS_OFFSET];
+			buffer[offset++] = TAG_BATCH;
+			buffer[offset++] = (byte) 2;
+			buffer[offset++] = batch.getStatus();
+			buffer[offset++] = (byte) batch.size();
+			buffer[offset++] = TAG_FEATURES;
+			buffer[offset++] = (byte) 2;
+			offset = Util.setShort(buffer, offset, FEATURES);
+			if (pin != null && scp.getSecurityLevel() != 0 && pin.isValidated()) {
+				buffer[offset++] = TAG_GROUP_COUNT;
+				buffer[offset++] = (byte) 2;
+				offset = Util.setShort(buffer, offset, groups.size());
+				buffer[offset++] = TAG_GROUP_NAMES;
+				buffer[offset++] = (byte) 0x81;
+				lc = (short) (groups.list(buffer, (short) (offset + 1), ZERO, ZERO) - 2);//Without the status word
+				buffer[offset++] = (byte) lc;
+				offset += lc;
+			}
+			apdu.setOutgoingAndSend(ZERO, offset);
+			return;
+		}
+		
 		/**
 		 * Initialize the user PIN.
 		 * 
@@ -128,6 +293,25 @@ public class SmartSafe extends Applet implements Constants {
 			return;
 		}
 		
+		/**
+		 * Return the persistent write costs recorded for each command since the last reset.
+		 * Only available in simulator builds, see WriteProfiler.
+		 * 
+		 * p1: 00 -> return the report
+		 *     01 -> return the report then reset the counters
+		 * input: none
+		 * output: see WriteProfiler#report(byte[], short)
+		 * */
+		if (WriteProfiler.ENABLED && clains == CLA_INS_GET_PROFILE) {
+			if ((p1 != 0 && p1 != 1) || p2 != 0)
+				ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+			lc = WriteProfiler.report(buffer, ZERO);
+			if (p1 == 1)
+				WriteProfiler.reset();
+			apdu.setOutgoingAndSend(ZERO, lc);
+			return;
+		}
+		
 		/* * * * * * * * * * * * * * * * * * * * * * 
 		 *                                         *
 		 * End of commands without authentication  *
@@ -155,14 +339,24 @@ public class SmartSafe extends Applet implements Constants {
 			
 			/**
 			 * See GlobalPlatform specifications.
+			 * 
+			 * The user PIN can be verified within this command, saving the AUTHENTICATE command.
+			 * 
+			 * p1: the security level of the session: 01, 03, 11, 13 or 33.
+			 *     Commands transporting sensitive data require a higher level, see Preconditions.
+			 * input: the host cryptogram (8 bytes), optionally followed by the PIN value encrypted as command data, and the MAC (8 bytes)
+			 * output: none
+			 *         if the submitted PIN is incorrect, the value of the PIN try counter (PTC), the session being opened anyway
 			 * */
 			case CLA_INS_EXT_AUTH:
 				try {
-					scp.processSecurity(apdu);
+					lc = scp.processSecurity(apdu);
 				} catch (ISOException e) {
 					pin.check(buffer, ZERO, (byte) 1);//Force PTC decreasing
 					ISOException.throwIt((short) (0x63C0 + pin.getTriesRemaining()));
 				}
+				if (lc != 0 && !pin.check(buffer, (short) (ISO7816.OFFSET_CDATA + 8), (byte) lc))
+					ISOException.throwIt((short) (0x63C0 + pin.getTriesRemaining()));
 				return;
 				
 			/**
@@ -173,6 +367,7 @@ public class SmartSafe extends Applet implements Constants {
 			 *         if the submitted PIN is incorrect, the value of the PIN try counter (PTC)
 			 * */
 			case CLA_SEC_INS_AUTHENTICATE:
+				Preconditions.check(clains, scp.getSecurityLevel(), false, null, null, p1, p2);
 				lc = scp.unwrap(buffer, ZERO, apdu.setIncomingAndReceive());
 				if (pin.check(buffer, ISO7816.OFFSET_CDATA, (byte) lc)) {
 					wrapOk(apdu, buffer);
@@ -189,13 +384,21 @@ public class SmartSafe extends Applet implements Constants {
 		 *                             *
 		 * * * * * * * * * * * * * * * */
 		
-		//At this state, if user is not authenticated, throw Exception
-		if (scp.getSecurityLevel() == 0 || !pin.isValidated())
-			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
-		
 		//Only command with CLA_SECURED (0x84) must be unwrapped
 		if ((byte) (clains >> 8) == CLA_SECURED)
 			lc = scp.unwrap(buffer, ZERO, apdu.setIncomingAndReceive());
+		else if ((buffer[ISO7816.OFFSET_CLA] & CLA_CHAINING) != 0)
+			ISOException.throwIt(ISO7816.SW_COMMAND_CHAINING_NOT_SUPPORTED);
+		
+		//At this state, check the user authentication, the security level, the selection and the parameters at once
+		Preconditions.check(clains, scp.getSecurityLevel(), pin.isValidated(), selectedGroup, selectedEntry, p1, p2);
+		
+		//Chained commands are assembled before being processed
+		if ((byte) (clains >> 8) == CLA_SECURED && chain(apdu, buffer, clains, lc)) {
+			data = scratch;
+			dataOffset = Scratch.CHAIN_OFFSET;
+			lc = chainState[CHAIN_LENGTH_INDEX];
+		}
 		
 		/* * * * * * * * * * * * * * * 
 		 *                           *
@@ -203,39 +406,6 @@ public class SmartSafe extends Applet implements Constants {
 		 *                           *
 		 * * * * * * * * * * * * * * */
 		
-		//"State machine" checks
-		switch (clains) {
-			case CLA_INS_GET_DATA:
-			case CLA_INS_SET_DATA:
-				//Index FF -> identifier -> only authorized under SM with CLA_SEC
-				//Index 0 -> password -> only authorized under SM with CLA_SEC
-				if (p1 <= 0)
-					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-				//Fall through
-			case CLA_SEC_INS_GET_DATA:
-				if (p1 < 0)
-					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-			case CLA_SEC_INS_SET_DATA:
-				if (p1 < -1 || p1 >= selectedEntry.getNbData() || p2 != 0)
-					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-				//Fall through
-			case CLA_INS_MOVE_ENTRY:
-				if (selectedEntry == null)
-					ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
-				//Fall through
-			case CLA_INS_GET_STATS:
-			case CLA_INS_RENAME_GROUP:
-			case CLA_INS_MOVE_GROUP:
-			case CLA_SEC_INS_ADD_ENTRY:
-			case CLA_SEC_INS_DELETE_ENTRY:
-			case CLA_SEC_INS_LIST_ENTRIES:
-			case CLA_SEC_INS_SELECT_ENTRY:
-				if (selectedGroup == null)
-					ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
-			default:
-				//Fall through
-		}
-		
 		//Main dispatcher
 		switch (clains) {
 			
@@ -248,8 +418,6 @@ public class SmartSafe extends Applet implements Constants {
 			 * output: none
 			 * */
 			case CLA_SEC_INS_CHANGE_PIN:
-				if (p1 != 0 || p2 != 0)
-					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
 				if (lc > PIN_DATA_MAX_SIZE)
 					ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 				initChangePin(buffer, lc);
@@ -262,42 +430,129 @@ public class SmartSafe extends Applet implements Constants {
 			 * 
 			 * Command executed under SM in order to ensure the confidentiality of the returned data.
 			 * 
+			 * p1: 00 -> persistent memory, saturated
+			 *     01 -> persistent and transient memories, not saturated
 			 * input: none
-			 * output: available memory coded on two bytes.
+			 * output: p1 = 00 -> available memory coded on two bytes.
+			 *         p1 = 01 -> available persistent memory, transient memory cleared on reset,
+			 *                    transient memory cleared on deselect, and reserved Groups and Entries.
+			 *                    Memories are coded on four bytes, numbers of reserved items on two bytes.
 			 * */
 			case CLA_SEC_INS_AVAILABLE:
-				if (p1 != 0 || p2 != 0)
+				if ((p1 != 0 && p1 != 1) || p2 != 0)
 					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-				Util.setShort(buffer, ZERO, JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_PERSISTENT));
-				wrap(apdu, buffer, (short) 2, ISO7816.SW_NO_ERROR);
+				if (p1 == 0) {
+					Util.setShort(buffer, ZERO, JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_PERSISTENT));
+					wrap(apdu, buffer, (short) 2, ISO7816.SW_NO_ERROR);
+					return;
+				}
+				lc = reservation.getAvailableMemory(JCSystem.MEMORY_TYPE_PERSISTENT, buffer, ZERO);
+				lc += reservation.getAvailableMemory(JCSystem.MEMORY_TYPE_TRANSIENT_RESET, buffer, lc);
+				lc += reservation.getAvailableMemory(JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT, buffer, lc);
+				lc = Util.setShort(buffer, lc, reservation.getNbGroups());
+				lc = Util.setShort(buffer, lc, reservation.getNbEntries());
+				wrap(apdu, buffer, lc, ISO7816.SW_NO_ERROR);
+				return;
+			
+			/**
+			 * Reserve Groups and Entries, so that their later creation does not fail for lack of memory.
+			 * Either all the requested items are reserved or none of them, see Reservation.
+			 * Reserved Entries are only used by the creation of Entries with the same number of data.
+			 * 
+			 * p1: 00 -> reserve
+			 *     01 -> release all the items not used yet, no input
+			 * input: number of Groups (2 bytes), number of Entries (2 bytes), number of data of each Entry (1 byte),
+			 *        number of bytes of field data (4 bytes)
+			 * output: none
+			 * */
+			case CLA_INS_RESERVE://No SM
+				lc = apdu.setIncomingAndReceive();
+				if ((p1 != 0 && p1 != 1) || p2 != 0)
+					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+				if (p1 == 1) {
+					if (lc != 0)
+						ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+					reservation.release();
+					return;
+				}
+				if (lc != 9)
+					ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+				reservation.reserve(Util.getShort(buffer, ISO7816.OFFSET_CDATA),
+				                    Util.getShort(buffer, (short) (ISO7816.OFFSET_CDATA + 2)),
+				                    buffer[ISO7816.OFFSET_CDATA + 4],
+				                    buffer, (short) (ISO7816.OFFSET_CDATA + 5));
+				return;
+				
+			/**
+			 * Manage and return the status of the batch of staged updates, see Batch.
+			 * While a batch is opened, the commands updating data, identifiers or positions are staged
+			 * and only applied when the batch is committed. The commands deleting Groups or Entries are refused.
+			 * 
+			 * p1: 00 -> do nothing
+			 *     01 -> abort (only if a batch is on-going)
+			 *     02 -> commit (only if a batch is on-going)
+			 *     03 -> open a new batch
+			 * input: none
+			 * output: the batch status followed by the number of staged updates
+			 * 			00 -> no batch
+			 * 			01 -> a batch is on-going
+			 * */
+			case CLA_INS_MANAGE_BATCH://No SM
+				if (p1 == (byte) 3)
+					batch.open();
+				else if (batch.isOpened()) {
+					if (p1 == (byte) 1)
+						batch.abort();
+					else if (p1 == (byte) 2)
+						batch.commit();
+				}
+				
+				buffer[0] = batch.getStatus();
+				buffer[1] = (byte) batch.size();
+				apdu.setOutgoingAndSend(ZERO, (short) 2);
 				return;
 				
 			/**
 			 * Create an new Group.
-			 * This command may fail if no memory is available.
+			 * This command may fail if no memory is available and no Group has been reserved.
 			 * 
-			 * input: the Group name
+			 * input: the Group name, up to IDENTIFIER_MAX_SIZE bytes
 			 * output: none
 			 * */	
 			case CLA_INS_CREATE_GROUP://No SM
 				lc = apdu.setIncomingAndReceive();
-				if (p1 != 0 || p2 != 0)
-					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-				selection[GROUP_INDEX] = selectedGroup = new Group(buffer, ISO7816.OFFSET_CDATA, lc);
-				groups.add(selectedGroup);
+				Identity.checkLength(lc);//Before a reserved Group is drawn
+				selectedGroup = reservation.takeGroup();
+				selectedGroup.init(groups, handles, buffer, ISO7816.OFFSET_CDATA, lc);
+				selection[groupIndex] = selectedGroup;
 				return;
 				
 			/**
 			 * Delete a Group.
+			 * The Group is removed at once, its Entries are wiped by steps: only the first step is performed by this command,
+			 * the next ones are performed by the following deletions and by the CLEANUP command, see Cleanup.
 			 * 
 			 * input: the name of the Group to delete.
 			 * output: none
 			 * */
 			case CLA_INS_DELETE_GROUP://No SM
 				lc = apdu.setIncomingAndReceive();
-				if (p1 != 0 || p2 != 0)
-					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-				groups.delete(buffer, ISO7816.OFFSET_CDATA, lc);
+				if (batch.isOpened())
+					ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+				unselect(cleanup.discard(groups, buffer, ISO7816.OFFSET_CDATA, lc));
+				cleanup.step();
+				return;
+				
+			/**
+			 * Continue wiping the deleted Groups, see Cleanup.
+			 * Cleanup is complete once both returned numbers are 0.
+			 * 
+			 * input: none
+			 * output: see Cleanup#report(byte[], short)
+			 * */
+			case CLA_INS_CLEANUP://No SM
+				cleanup.step();
+				apdu.setOutgoingAndSend(ZERO, cleanup.report(buffer, ZERO));
 				return;
 				
 			/**
@@ -306,13 +561,17 @@ public class SmartSafe extends Applet implements Constants {
 			 * Else the 9000 SW is returned indicating that all the Groups name have been returned.
 			 * 
 			 * p1: the index where starting to retrieve the Groups.
+			 * p2: 00 -> names only, in the user order
+			 *     bit 01 -> each name is preceded by the handle of the Group
+			 *     bit 02 -> the Groups are listed in alphabetical order, p1 being the index in this order
 			 * input: none
 			 * output: formatted as LVLVLV..., the names of the Groups.
+			 *         formatted as HLVHLVHLV... if the handles are requested, H being coded on two bytes.
 			 * */
 			case CLA_INS_LIST_GROUPS://No SM
-				if (p1 >= groups.size() || p2 != 0)
+				if (p1 < 0 || p1 >= groups.size() || (p2 & ~(LIST_WITH_HANDLES | LIST_SORTED)) != 0)
 					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-				lc = groups.list(buffer, p1);
+				lc = groups.list(buffer, ZERO, p1, p2);
 				lc -= 2;//listIdentities() appends the SW at the end of the data
 				apdu.setOutgoingAndSend(ZERO, lc);
 				ISOException.throwIt(Util.getShort(buffer, lc));
@@ -321,23 +580,42 @@ public class SmartSafe extends Applet implements Constants {
 			/**
 			 * Select a Group, in order to execute future command on this Group.
 			 * 
-			 * input: the Group name
+			 * p2: 00 -> by name
+			 *     01 -> by handle, see HandleTable
+			 * input: the Group name or its handle
 			 * output: none
 			 * */
 			case CLA_INS_SELECT_GROUP://No SM
 				lc = apdu.setIncomingAndReceive();
-				if (p1 != 0 || p2 != 0)
+				if (p2 != 0 && p2 != SELECT_BY_HANDLE)
 					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-				selection[GROUP_INDEX] = groups.get(buffer, ISO7816.OFFSET_CDATA, lc);
+				if (p2 == SELECT_BY_HANDLE) {
+					if (lc != 2)
+						ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+					selection[groupIndex] = handles.resolveGroup(Util.getShort(buffer, ISO7816.OFFSET_CDATA));
+				}
+				else
+					selection[groupIndex] = groups.get(buffer, ISO7816.OFFSET_CDATA, lc);
 				return;
 				
 			/**
-			 * Retrieve the number of Entries contained in the currently selected Group.
+			 * Retrieve statistics.
 			 * 
+			 * p1: 00 -> number of Entries contained in the currently selected Group
+			 *     01 -> number of persistent writes avoided since the last reset, no Group needs to be selected
 			 * input: none
-			 * output: the number of Entries, coded on two bytes.
+			 * output: p1 = 00 -> the number of Entries, coded on two bytes.
+			 *         p1 = 01 -> see WriteFilter#report(byte[], short)
 			 * */
 			case CLA_INS_GET_STATS://No SM
+				if (p1 == STATS_WRITES) {
+					apdu.setOutgoingAndSend(ZERO, WriteFilter.report(buffer, ZERO));
+					return;
+				}
+				if (p1 != 0)
+					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+				if (selectedGroup == null)
+					ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 				Util.setShort(buffer, ZERO, selectedGroup.getNbEntries());
 				apdu.setOutgoingAndSend(ZERO, (short) 2);
 				return;
@@ -346,14 +624,12 @@ public class SmartSafe extends Applet implements Constants {
 			 * Rename the currently selected Group.
 			 * This command may fail if there is not enough memory to save the new name.
 			 * 
-			 * input: the new name
+			 * input: the new name, up to IDENTIFIER_MAX_SIZE bytes
 			 * output: none
 			 * */
 			case CLA_INS_RENAME_GROUP:
 				lc = apdu.setIncomingAndReceive();
-				if (p1 != 0 || p2 != 0)
-					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-				selectedGroup.setIdentifier(buffer, ISO7816.OFFSET_CDATA, lc);
+				setIdentifier(groups, selectedGroup, buffer, ISO7816.OFFSET_CDATA, lc);
 				return;
 				
 			/**
@@ -365,25 +641,64 @@ public class SmartSafe extends Applet implements Constants {
 			 * output: none
 			 * */
 			case CLA_INS_MOVE_GROUP:
-				if (p2 != 0 || !groups.move(selectedGroup, p1))
+				if (batch.isOpened())
+					batch.stageMove(groups, selectedGroup, p1);
+				else if (!groups.move(selectedGroup, p1))
 					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
 				return;
 				
+			/**
+			 * Reorder all the Groups at once, see #reorder(List, Group, byte[], short, boolean).
+			 * This command is refused while a batch is opened.
+			 * 
+			 * p2: 00 -> the new order is given as indexes
+			 *     01 -> the new order is given as handles
+			 * input: the current index (1 byte) or the handle (2 bytes) of each Group, in the new order
+			 * output: none
+			 * */
+			case CLA_INS_REORDER_GROUPS://No SM
+				lc = apdu.setIncomingAndReceive();
+				if (p2 != 0 && p2 != REORDER_BY_HANDLE)
+					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+				if (batch.isOpened())
+					ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+				reorder(groups, null, buffer, lc, p2 == REORDER_BY_HANDLE);
+				return;
+				
+			/**
+			 * Reorder all the Entries of the currently selected Group at once, see #reorder(List, Group, byte[], short, boolean).
+			 * This command is refused while a batch is opened.
+			 * 
+			 * p2: 00 -> the new order is given as indexes
+			 *     01 -> the new order is given as handles
+			 * input: the current index (1 byte) or the handle (2 bytes) of each Entry, in the new order
+			 * output: none
+			 * */
+			case CLA_INS_REORDER_ENTRIES://No SM
+				lc = apdu.setIncomingAndReceive();
+				if (p2 != 0 && p2 != REORDER_BY_HANDLE)
+					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+				if (batch.isOpened())
+					ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+				reorder(selectedGroup.entries, selectedGroup, buffer, lc, p2 == REORDER_BY_HANDLE);
+				return;
+				
 				
 			/**
 			 * Create an Entry and add it in the currently selected Group.
 			 * 
 			 * Command executed under SM in order to ensure the confidentiality of the identifier.
+			 * Command chaining is supported, see #chain(APDU, byte[], short, short).
 			 * 
 			 * p1: the number of data elements contained in the Entry.
-			 * input: the identifier of the Entry
+			 * input: the identifier of the Entry, up to IDENTIFIER_MAX_SIZE bytes
 			 * output: none
 			 * */
 			case CLA_SEC_INS_ADD_ENTRY:
-				if (p1 < 0 || p2 != 0)
+				if (p1 < 0)
 					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-				selection[ENTRY_INDEX] = selectedEntry = selectedGroup.addEmptyEntry(p1);
-				selectedEntry.setIdentifier(buffer, ISO7816.OFFSET_CDATA, lc);
+				Identity.checkLength(lc);//Before a reserved Entry is drawn
+				selection[entryIndex] = selectedEntry = selectedGroup.addEmptyEntry(reservation.takeEntry(p1), data, dataOffset, lc);
 				wrapOk(apdu, buffer);
 				return;
 				
@@ -395,9 +710,9 @@ public class SmartSafe extends Applet implements Constants {
 			 * output: none
 			 * */
 			case CLA_SEC_INS_DELETE_ENTRY:
-				if (p1 != 0 || p2 != 0)
-					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-				selectedGroup.deleteEntry(buffer, ISO7816.OFFSET_CDATA, lc);
+				if (batch.isOpened())
+					ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+				unselect(selectedGroup.deleteEntry(buffer, ISO7816.OFFSET_CDATA, lc));
 				wrapOk(apdu, buffer);
 				return;
 				
@@ -409,13 +724,17 @@ public class SmartSafe extends Applet implements Constants {
 			 * Command executed under SM in order to ensure the confidentiality of the identifiers.
 			 * 
 			 * p1: the index where starting to retrieve the Entries.
+			 * p2: 00 -> identifiers only, in the user order
+			 *     bit 01 -> each identifier is preceded by the handle of the Entry
+			 *     bit 02 -> the Entries are listed in alphabetical order, p1 being the index in this order
 			 * input: none
 			 * output: formatted as LVLVLV..., the identifiers of the Entries.
+			 *         formatted as HLVHLVHLV... if the handles are requested, H being coded on two bytes.
 			 * */
 			case CLA_SEC_INS_LIST_ENTRIES:
-				if (p1 >= selectedGroup.getNbEntries() || p2 != 0)
+				if (p1 < 0 || p1 >= selectedGroup.getNbEntries() || (p2 & ~(LIST_WITH_HANDLES | LIST_SORTED)) != 0)
 					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-				wrap(apdu, buffer, selectedGroup.listEntries(buffer, p1));
+				wrap(apdu, buffer, selectedGroup.listEntries(buffer, p1, p2));
 				return;
 				
 			/**
@@ -423,13 +742,21 @@ public class SmartSafe extends Applet implements Constants {
 			 * 
 			 * Command executed under SM in order to ensure the confidentiality of the identifier.
 			 * 
-			 * input: the Entry identifier
+			 * p2: 00 -> by identifier
+			 *     01 -> by handle, see HandleTable
+			 * input: the Entry identifier or its handle
 			 * output: none
 			 * */
 			case CLA_SEC_INS_SELECT_ENTRY:
-				if (p1 != 0 || p2 != 0)
+				if (p2 != 0 && p2 != SELECT_BY_HANDLE)
 					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-				selection[ENTRY_INDEX] = selectedGroup.getEntry(buffer, ISO7816.OFFSET_CDATA, lc);
+				if (p2 == SELECT_BY_HANDLE) {
+					if (lc != 2)
+						ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+					selection[entryIndex] = handles.resolveEntry(Util.getShort(buffer, ISO7816.OFFSET_CDATA), selectedGroup);
+				}
+				else
+					selection[entryIndex] = selectedGroup.getEntry(buffer, ISO7816.OFFSET_CDATA, lc);
 				wrapOk(apdu, buffer);
 				return;
 				
@@ -450,20 +777,264 @@ public class SmartSafe extends Applet implements Constants {
 			 * Write data to the currently selected Entry.
 			 * 
 			 * Command executed under SM in order to ensure the confidentiality of the data.
+			 * Command chaining is supported, so that data longer than an APDU can be written at once.
 			 * 
 			 * p1: index of the data to write
-			 *     FF -> specific index value that updates the entry identifier
+			 *     FF -> specific index value that updates the entry identifier, up to IDENTIFIER_MAX_SIZE bytes
 			 * input: the data
 			 * output: none
 			 * */
 			case CLA_SEC_INS_SET_DATA:
 				if (p1 == -1)
-					selectedEntry.setIdentifier(buffer, ISO7816.OFFSET_CDATA, lc);
+					setIdentifier(selectedGroup.entries, selectedEntry, data, dataOffset, lc);
 				else
-					selectedEntry.setData(p1, buffer, ISO7816.OFFSET_CDATA, lc);
+					setData(selectedEntry, p1, data, dataOffset, lc);
+				wrapOk(apdu, buffer);
+				return;
+				
+			/**
+			 * Write several data of the currently selected Entry at once.
+			 * Either all the data are written or none of them, see #setMultiData(Group, Entry, byte[], short, short).
+			 * 
+			 * Command executed under SM in order to ensure the confidentiality of the data.
+			 * Command chaining is supported, see #chain(APDU, byte[], short, short).
+			 * 
+			 * input: formatted as TLVTLV..., T being the index of the data to write
+			 *        FF -> specific index value that updates the entry identifier
+			 * output: none
+			 * */
+			case CLA_SEC_INS_SET_MULTI_DATA:
+				setMultiData(selectedGroup, selectedEntry, data, dataOffset, lc);
+				wrapOk(apdu, buffer);
+				return;
+				
+			/**
+			 * Change the number of data elements of the currently selected Entry.
+			 * The Entry keeps its identifier, its data and its position, the data beyond the new number of data elements are deleted.
+			 * This command is refused while a batch is opened.
+			 * 
+			 * p1: the new number of data elements contained in the Entry.
+			 * input: none
+			 * output: none
+			 * */
+			case CLA_SEC_INS_RESIZE_ENTRY:
+				if (p1 < 0)
+					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+				if (batch.isOpened())
+					ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+				selectedEntry.resize(p1);
 				wrapOk(apdu, buffer);
 				return;
 				
+			/**
+			 * Copy the currently selected Entry, with all its data, in the same or another Group under a new identifier.
+			 * The data are copied on card and the selection is not modified.
+			 * 
+			 * Command executed under SM in order to ensure the confidentiality of the identifier.
+			 * 
+			 * input: the target Group name, formatted as LV (L = 0 -> currently selected Group), followed by the new identifier
+			 * output: the handle of the new Entry
+			 * */
+			case CLA_SEC_INS_CLONE_ENTRY:
+				offset = (short) (data[dataOffset] & 0xFF);//Length of the Group name
+				if (lc < (short) (offset + 2))
+					ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+				tmp = offset == 0 ? selectedGroup : (Group) groups.get(data, (short) (dataOffset + 1), offset);
+				offset++;
+				Identity.checkLength((short) (lc - offset));//Before a reserved Entry is drawn
+				Util.setShort(buffer, ZERO, tmp.cloneEntry(reservation.takeEntry((byte) selectedEntry.getNbData()), selectedEntry, data, (short) (dataOffset + offset), (short) (lc - offset)).handle);
+				wrap(apdu, buffer, (short) 2, ISO7816.SW_NO_ERROR);
+				return;
+				
+			/**
+			 * Read a part of a data of the currently selected Entry, so that data longer than an APDU can be read in several commands.
+			 * 
+			 * Command executed under SM in order to ensure the confidentiality of the data.
+			 * If the end of the data is not reached, the 6310 SW is returned indicating that more data is available.
+			 * 
+			 * p1: index of the data to read
+			 * input: offset of the part in the data (2 bytes), length of the part (1 byte, at most 200)
+			 * output: the part of the data, which is shorter than requested if the end of the data is reached
+			 * */
+			case CLA_SEC_INS_GET_DATA_PART:
+				if (lc != 3)
+					ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+				offset = Util.getShort(buffer, ISO7816.OFFSET_CDATA);
+				lc = (short) (buffer[ISO7816.OFFSET_CDATA + 2] & 0xFF);
+				if (lc > DATA_PART_MAX_SIZE)
+					ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+				lc = selectedEntry.getDataPart(p1, offset, lc, buffer, ZERO);
+				offset += lc;
+				wrap(apdu, buffer, lc, offset < selectedEntry.getDataLength(p1) ? SW_DATA_REMAINING : ISO7816.SW_NO_ERROR);
+				return;
+				
+			/**
+			 * Write a part of a data of the currently selected Entry, so that data longer than an APDU can be written in several commands.
+			 * The data must already be long enough, see CLA_SEC_INS_SET_DATA_LENGTH.
+			 * Only the modified bytes are written. This command is refused while a batch is opened.
+			 * 
+			 * Command executed under SM in order to ensure the confidentiality of the data.
+			 * Command chaining is supported, see #chain(APDU, byte[], short, short).
+			 * 
+			 * p1: index of the data to write
+			 * input: offset of the part in the data (2 bytes), followed by the part of the data
+			 * output: none
+			 * */
+			case CLA_SEC_INS_SET_DATA_PART:
+				if (lc < 2)
+					ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+				if (batch.isOpened())
+					ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+				selectedEntry.setDataPart(p1, Util.getShort(data, dataOffset),
+				                          data, (short) (dataOffset + 2), (short) (lc - 2));
+				wrapOk(apdu, buffer);
+				return;
+				
+			/**
+			 * Set the length of a data of the currently selected Entry, before writing it part by part.
+			 * The existing bytes are kept up to the new length, the new bytes are set to 0.
+			 * This command may fail if there is not enough memory. It is refused while a batch is opened.
+			 * 
+			 * p1: index of the data
+			 * input: the new length of the data (2 bytes)
+			 * output: none
+			 * */
+			case CLA_SEC_INS_SET_DATA_LENGTH:
+				if (lc != 2)
+					ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+				if (batch.isOpened())
+					ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+				offset = Util.getShort(buffer, ISO7816.OFFSET_CDATA);
+				if (offset < 0)
+					ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+				selectedEntry.setDataLength(p1, offset);
+				wrapOk(apdu, buffer);
+				return;
+				
+			/**
+			 * Replace a data of the currently selected Entry by an empty attachment, or remove an attachment.
+			 * An attachment stores binary data of any length as a chain of segments, see Attachment.
+			 * It can only be accessed through READ_SEGMENT and WRITE_SEGMENT, other data commands fail with 6981.
+			 * The previous value of the data is wiped. This command is refused while a batch is opened.
+			 * 
+			 * p1: index of the data
+			 * p2: 00 -> create an empty attachment
+			 *     01 -> remove the attachment, the data is empty
+			 * input: none
+			 * output: none
+			 * */
+			case CLA_SEC_INS_INIT_ATTACHMENT:
+				if (p2 != 0 && p2 != ATTACHMENT_REMOVE)
+					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+				if (batch.isOpened())
+					ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+				if (p2 == ATTACHMENT_REMOVE)
+					selectedEntry.getAttachment(p1);//Check that the data is an attachment
+				selectedEntry.initAttachment(p1, p2 == 0);
+				wrapOk(apdu, buffer);
+				return;
+				
+			/**
+			 * Read a segment of an attachment of the currently selected Entry.
+			 * If the segment is not the last one, the 6310 SW is returned indicating that more data is available.
+			 * 
+			 * Command executed under SM in order to ensure the confidentiality of the data.
+			 * 
+			 * p1: index of the data
+			 * input: the segment number (2 bytes)
+			 *        FFFF -> specific segment number returning the attachment information
+			 * output: the segment, or the number of segments (2 bytes), the total length (4 bytes) and the segment size (2 bytes)
+			 * */
+			case CLA_SEC_INS_READ_SEGMENT:
+				if (lc != 2)
+					ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+				offset = Util.getShort(buffer, ISO7816.OFFSET_CDATA);
+				if (offset == ATTACHMENT_INFO) {
+					wrap(apdu, buffer, selectedEntry.getAttachment(p1).getInfo(buffer, ZERO), ISO7816.SW_NO_ERROR);
+					return;
+				}
+				lc = selectedEntry.getAttachment(p1).readSegment(offset, buffer, ZERO);
+				offset++;
+				wrap(apdu, buffer, lc, offset < selectedEntry.getAttachment(p1).getNbSegments() ? SW_DATA_REMAINING : ISO7816.SW_NO_ERROR);
+				return;
+				
+			/**
+			 * Write a segment of an attachment of the currently selected Entry, see Attachment.
+			 * The segment following the last one appends a new segment.
+			 * A segment shorter than the segment size becomes the last one, an empty segment 0 empties the attachment.
+			 * This command is refused while a batch is opened.
+			 * 
+			 * Command executed under SM in order to ensure the confidentiality of the data.
+			 * 
+			 * p1: index of the data
+			 * input: the segment number (2 bytes), followed by the segment
+			 * output: none
+			 * */
+			case CLA_SEC_INS_WRITE_SEGMENT:
+				if (lc < 2)
+					ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+				if (batch.isOpened())
+					ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+				selectedEntry.getAttachment(p1).writeSegment(Util.getShort(buffer, ISO7816.OFFSET_CDATA),
+				                                            buffer, (short) (ISO7816.OFFSET_CDATA + 2), (short) (lc - 2));
+				wrapOk(apdu, buffer);
+				return;
+				
+			/**
+			 * Compute a HOTP or TOTP code from the seed stored in a data of the currently selected Entry.
+			 * The seed never leaves the card, see OneTimePassword.
+			 * 
+			 * Command executed under SM in order to ensure the confidentiality of the code.
+			 * 
+			 * p1: index of the data containing the seed
+			 * p2: 01 -> HMAC-SHA1
+			 *     02 -> HMAC-SHA256
+			 * input: HOTP -> the counter (8 bytes), the number of digits (1 byte, from 6 to 10)
+			 *        TOTP -> the Unix time in seconds (8 bytes), the number of digits (1 byte, from 6 to 10),
+			 *                the time step in seconds (1 byte, from 1 to 127)
+			 * output: the code as ASCII digits
+			 * */
+			case CLA_SEC_INS_COMPUTE_OTP:
+				if (lc != 9 && lc != 10)
+					ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+				if (lc == 10) {//TOTP, the counter is the number of time steps
+					if (buffer[ISO7816.OFFSET_CDATA + 9] <= 0)
+						ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+					OneTimePassword.divide(buffer, ISO7816.OFFSET_CDATA, (short) 8, buffer[ISO7816.OFFSET_CDATA + 9]);
+				}
+				lc = otp.hotp(selectedEntry.getBuffer(p1), p2, buffer, ISO7816.OFFSET_CDATA, buffer[ISO7816.OFFSET_CDATA + 8], buffer, ZERO);
+				wrap(apdu, buffer, lc, ISO7816.SW_NO_ERROR);
+				return;
+				
+			/**
+			 * Generate a random password and write it in a data of the currently selected Entry, see PasswordGenerator.
+			 * The update is staged if a batch is opened.
+			 * 
+			 * Command executed under SM in order to ensure the confidentiality of the password, when returned.
+			 * 
+			 * p1: index of the data to write
+			 * p2: 00 -> the password is only written
+			 *     80 -> the password is also returned, which requires encrypted responses
+			 * input: the length of the password (1 byte, at most 200), the character classes (1 byte):
+			 *        bit 01 -> lower case letters, bit 02 -> upper case letters, bit 04 -> digits, bit 08 -> symbols
+			 * output: the password, if requested
+			 * */
+			case CLA_SEC_INS_GENERATE:
+				if ((p2 & ~GENERATE_RETURN) != 0)
+					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+				if (p2 == GENERATE_RETURN && (scp.getSecurityLevel() & (SEC_R_MAC | SEC_R_ENC)) != (SEC_R_MAC | SEC_R_ENC))
+					ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+				if (lc != 2)
+					ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+				lc = generator.generate(buffer[ISO7816.OFFSET_CDATA + 1], (short) (buffer[ISO7816.OFFSET_CDATA] & 0xFF), buffer, ZERO);
+				setData(selectedEntry, p1, buffer, ZERO, lc);
+				if (p2 != GENERATE_RETURN) {
+					Util.arrayFillNonAtomic(buffer, ZERO, lc, ZERO);
+					lc = ZERO;
+				}
+				wrap(apdu, buffer, lc, ISO7816.SW_NO_ERROR);
+				return;
+				
 			/**
 			 * Read data from the currently selected Entry.
 			 * 
@@ -490,7 +1061,7 @@ public class SmartSafe extends Applet implements Constants {
 			 * */
 			case CLA_INS_SET_DATA://No SM
 				lc = apdu.setIncomingAndReceive();
-				selectedEntry.setData(p1, buffer, ISO7816.OFFSET_CDATA, lc);
+				setData(selectedEntry, p1, buffer, ISO7816.OFFSET_CDATA, lc);
 				return;
 				
 			/**
@@ -504,10 +1075,10 @@ public class SmartSafe extends Applet implements Constants {
 			 * output: none
 			 * */
 			case CLA_INS_MOVE_ENTRY:
-				if (p2 != 0)
-					ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
 				if (p1 == MOVE_UP || p1 == MOVE_DOWN) {
-					if (!selectedGroup.entries.move(selectedEntry, p1))
+					if (batch.isOpened())
+						batch.stageMove(selectedGroup.entries, selectedEntry, p1);
+					else if (!selectedGroup.entries.move(selectedEntry, p1))
 						ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
 					return;
 				}
@@ -517,12 +1088,17 @@ public class SmartSafe extends Applet implements Constants {
 					//First, check that the given name corresponds to an existing Group
 					tmp = (Group) groups.get(buffer, ISO7816.OFFSET_CDATA, lc);
 					
+					//Staged moves are replayed on commit, the Entry stays in the selected Group until then
+					if (batch.isOpened()) {
+						batch.stageMoveTo(selectedEntry, selectedGroup, tmp);
+						return;
+					}
+					
 					//Then, moving !
-					selectedGroup.entries.remove(selectedEntry);
-					tmp.entries.add(selectedEntry);
+					selectedGroup.moveEntry(selectedEntry, tmp);
 					
 					//Invalidate Entry selection to avoid inconsistencies
-					selection[ENTRY_INDEX] = null;
+					unselect(selectedEntry);
 					return;
 				}
 				ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
@@ -539,6 +1115,17 @@ public class SmartSafe extends Applet implements Constants {
 		 * * * * * * * * * * * * * */
 	}
 	
+	/**
+	 * Return the life cycle state, see Select.
+	 * */
+	private short getLifeCycle() {
+		if (pin == null)
+			return (short) 0xDECA;
+		if (pin.getTriesRemaining() == 0)
+			return (short) 0xDEAD;
+		return (short) 0xCAFE;
+	}
+	
 	private void wrapOk(APDU apdu, byte[] buffer) {
 		wrap(apdu, buffer, ZERO, ISO7816.SW_NO_ERROR);
 	}
@@ -556,12 +1143,194 @@ public class SmartSafe extends Applet implements Constants {
 		ISOException.throwIt(sw);
 	}
 	
+	/**
+	 * Write all the data contained in the TLV formatted input within a single transaction.
+	 * The whole input is checked before writing anything so that an invalid input does not update the Entry.
+	 * If a batch is opened, the data are staged instead.
+	 * */
+	private void setMultiData(Group group, Entry entry, byte[] buffer, short start, short lc) {
+		short offset = start, end = (short) (offset + lc), len, count = 0, prev;
+		byte index;
+		
+		//Step 1, check the indexes and the lengths
+		while (offset < end) {
+			if ((short) (offset + 2) > end)
+				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+			index = buffer[offset];
+			if (index < -1 || index >= entry.getNbData())
+				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+			if (index != -1 && entry.isAttachment(index))
+				ISOException.throwIt(ISO7816.SW_COMMAND_INCOMPATIBLE);
+			//A data cannot be written twice within a transaction, see Identity#getWritable(byte[], byte[], short)
+			for (prev = start; prev < offset; prev += (short) (2 + (buffer[(short) (prev + 1)] & 0xFF))) {
+				if (buffer[prev] == index)
+					ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+			}
+			offset += (short) (2 + (buffer[(short) (offset + 1)] & 0xFF));
+			count++;
+		}
+		if (offset != end)
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		if (batch.isOpened() && count > batch.available())
+			ISOException.throwIt(ISO7816.SW_FILE_FULL);
+		
+		//Step 2, writing !
+		if (!batch.isOpened())
+			JCSystem.beginTransaction();
+		for (offset = start; offset < end; offset += (short) (2 + len)) {
+			index = buffer[offset];
+			len = (short) (buffer[(short) (offset + 1)] & 0xFF);
+			if (index == -1)
+				setIdentifier(group.entries, entry, buffer, (short) (offset + 2), len);
+			else
+				setData(entry, index, buffer, (short) (offset + 2), len);
+		}
+		if (!batch.isOpened()) {
+			if (WriteProfiler.ENABLED)
+				WriteProfiler.commit();
+			JCSystem.commitTransaction();
+		}
+	}
+	
+	/**
+	 * Apply a new order to a whole list within a single transaction.
+	 * The new order must be a permutation of the list: each Identity must be given exactly once.
+	 * It is checked entirely before relinking the list, so that an invalid order does not modify it.
+	 * 
+	 * owner: the Group of the Entries to reorder, null to reorder the Groups
+	 * */
+	private void reorder(List list, Group owner, byte[] buffer, short lc, boolean byHandle) {
+		short count = list.size(), i, key;
+		byte bit;
+		byte[] bitmap = scratch;
+		if (count > REORDER_MAX_SIZE || lc != (byHandle ? (short) (2 * count) : count))
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		if (count == 0)
+			return;
+		
+		//Step 1, check that the order is a permutation, each index or handle slot being marked in the bitmap
+		Util.arrayFillNonAtomic(bitmap, Scratch.BITMAP_OFFSET, Scratch.BITMAP_LENGTH, ZERO);
+		if (!byHandle)
+			list.toArray(reorderNodes);
+		for (i = ZERO; i < count; i++) {
+			if (byHandle) {
+				key = Util.getShort(buffer, (short) (ISO7816.OFFSET_CDATA + 2 * i));
+				reorderNodes[i] = owner == null ? (Identity) handles.resolveGroup(key) : (Identity) handles.resolveEntry(key, owner);
+				key = (short) ((key >> 8) & 0xFF);//Slot
+			}
+			else {
+				key = (short) (buffer[(short) (ISO7816.OFFSET_CDATA + i)] & 0xFF);
+				if (key >= count)
+					ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+			}
+			bit = (byte) (1 << (short) (key & 7));
+			key = (short) (Scratch.BITMAP_OFFSET + (key >> 3));
+			if ((bitmap[key] & bit) != 0)
+				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+			bitmap[key] |= bit;
+		}
+		
+		//Step 2, relinking !
+		JCSystem.beginTransaction();
+		if (byHandle)
+			list.reorder(reorderNodes, null, ZERO, count);
+		else
+			list.reorder(reorderNodes, buffer, ISO7816.OFFSET_CDATA, count);
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.commit();
+		JCSystem.commitTransaction();
+		Util.arrayFillNonAtomic(bitmap, Scratch.BITMAP_OFFSET, Scratch.BITMAP_LENGTH, ZERO);
+		for (i = ZERO; i < count; i++)
+			reorderNodes[i] = null;
+	}
+	
+	/**
+	 * Accumulate the unwrapped data of a chained command (ISO 7816-4 command chaining) in the chaining area of the scratch.
+	 * Each segment is unwrapped and checked on its own, the MAC chaining covering the whole chain.
+	 * Intermediate segments are only acknowledged, the command is processed on the last one.
+	 * Only one chain can be in progress at a time, on a single logical channel.
+	 * 
+	 * return: true if this segment ends a chain, the assembled data being available in the scratch,
+	 *         false if the command is not chained
+	 * */
+	private boolean chain(APDU apdu, byte[] buffer, short clains, short lc) {
+		boolean chained = (buffer[ISO7816.OFFSET_CLA] & CLA_CHAINING) != 0;
+		short p1p2 = Util.getShort(buffer, ISO7816.OFFSET_P1), length = chainState[CHAIN_LENGTH_INDEX];
+		boolean inProgress = chainState[CHAIN_CLAINS_INDEX] != 0;
+		
+		if (inProgress && chainState[CHAIN_CHANNEL_INDEX] != JCSystem.getAssignedChannel()) {
+			if (chained)
+				ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+			return false;
+		}
+		if (!inProgress) {
+			if (!chained)
+				return false;
+			switch (clains) {
+				case CLA_SEC_INS_ADD_ENTRY:
+				case CLA_SEC_INS_SET_DATA:
+				case CLA_SEC_INS_SET_MULTI_DATA:
+				case CLA_SEC_INS_SET_DATA_PART:
+					break;
+				default:
+					ISOException.throwIt(ISO7816.SW_COMMAND_CHAINING_NOT_SUPPORTED);
+			}
+			length = ZERO;
+			chainState[CHAIN_P1P2_INDEX] = p1p2;
+			chainState[CHAIN_CHANNEL_INDEX] = JCSystem.getAssignedChannel();
+		}
+		else if (chainState[CHAIN_CLAINS_INDEX] != clains || chainState[CHAIN_P1P2_INDEX] != p1p2) {
+			chainState[CHAIN_CLAINS_INDEX] = ZERO;
+			ISOException.throwIt(ISO7816.SW_LAST_COMMAND_EXPECTED);
+		}
+		if ((short) (length + lc) > CHAIN_BUFFER_SIZE) {
+			chainState[CHAIN_CLAINS_INDEX] = ZERO;
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		
+		Util.arrayCopyNonAtomic(buffer, ISO7816.OFFSET_CDATA, scratch, (short) (Scratch.CHAIN_OFFSET + length), lc);
+		chainState[CHAIN_LENGTH_INDEX] = (short) (length + lc);
+		if (chained) {
+			chainState[CHAIN_CLAINS_INDEX] = clains;
+			wrapOk(apdu, buffer);
+		}
+		chainState[CHAIN_CLAINS_INDEX] = ZERO;//Last segment, the chain is over
+		return true;
+	}
+	
+	/**
+	 * Update the data of an Entry, or stage the update if a batch is opened.
+	 * */
+	private void setData(Entry entry, byte index, byte[] buffer, short offset, short len) {
+		if (entry.isAttachment(index))
+			ISOException.throwIt(ISO7816.SW_COMMAND_INCOMPATIBLE);
+		if (batch.isOpened())
+			batch.stageData(entry, index, buffer, offset, len);
+		else
+			entry.setData(index, buffer, offset, len);
+	}
+	/**
+	 * Rename a Group or an Entry of the given list, or stage the update if a batch is opened.
+	 * */
+	private void setIdentifier(List list, Identity identity, byte[] buffer, short offset, short len) {
+		if (batch.isOpened())
+			batch.stageIdentifier(list, identity, buffer, offset, len);
+		else {
+			identity.setIdentifier(buffer, offset, len);
+			list.reindex(identity);
+		}
+	}
+	
 	private void initChangePin(byte[] buffer, short lc) {
 		if (transactionBuffer[TRNS_BUFF_STATUS_OFFSET] != STATUS_NO)
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		JCSystem.beginTransaction();
 		transactionBuffer[TRNS_BUFF_STATUS_OFFSET] = STATUS_ON;
 		Util.arrayCopy(buffer, ISO7816.OFFSET_CDATA, transactionBuffer, TRNS_BUFF_DATA_OFFSET, lc);
+		if (WriteProfiler.ENABLED) {
+			WriteProfiler.write((short) (STATUS_SIZE + lc));
+			WriteProfiler.commit();
+		}
 		JCSystem.commitTransaction();
 	}
 	private void commitChangePin() {
@@ -569,16 +1338,24 @@ public class SmartSafe extends Applet implements Constants {
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		byte pinLen = transactionBuffer[TRNS_BUFF_PIN_LEN_OFFSET];
 		OwnerPIN newPin = new OwnerPIN(transactionBuffer[TRNS_BUFF_PTL_OFFSET], pinLen);
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.allocate(pinLen);
 		JCSystem.beginTransaction();
 		scp.setKeys(transactionBuffer, TRNS_BUFF_KEYS_OFFSET);
 		pin = newPin;
 		pin.update(transactionBuffer, TRNS_BUFF_PIN_VAL_OFFSET, pinLen);
 		abortChangePin();
+		if (WriteProfiler.ENABLED) {
+			WriteProfiler.write((short) (KEYS_SIZE + pinLen));
+			WriteProfiler.commit();
+		}
 		JCSystem.commitTransaction();
 	}
 	private void abortChangePin() {
 		//No transaction
 		transactionBuffer[TRNS_BUFF_STATUS_OFFSET] = STATUS_NO;
 		random.generateData(transactionBuffer, TRNS_BUFF_KEYS_OFFSET, PIN_DATA_MAX_SIZE);
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.write((short) (STATUS_SIZE + PIN_DATA_MAX_SIZE));
 	}
 }
@@ -0,0 +1,34 @@
+package fr.securingdata.smartsafe.server;
+
+import javacard.framework.Shareable;
+
+/**
+ * Interface offered to a co-resident applet, so that it reads the Entries without going through APDUs and secure messaging.
+ *
+ * Only the applet whose AID is given in the install parameters of SmartSafe gets this interface,
+ * and all the methods throw the 6982 SW while the user PIN is not validated.
+ * The PIN validation is reset once SmartSafe is no longer selected on any channel, closing the access with the host session.
+ * The arrays given by the caller must be global arrays, the APDU buffer for instance, as they cross the applet firewall.
+ *
+ * Groups and Entries are referenced by their handles, see HandleTable.
+ * The committed values are returned, whether a batch is on-going or not.
+ * */
+public interface SmartSafeShareable extends Shareable {
+	/**
+	 * return: the handle of the Group with the given name
+	 * */
+	short getGroup(byte[] name, short offset, byte len);
+	/**
+	 * return: the handle of the Entry of the given Group with the given identifier
+	 * */
+	short getEntry(short group, byte[] identifier, short offset, byte len);
+	/**
+	 * return: the length of the data at the given index of the Entry
+	 * */
+	short getDataLength(short group, short entry, byte index);
+	/**
+	 * Copy the data at the given index of the Entry in the output array.
+	 * return: the length of the data
+	 * */
+	short getData(short group, short entry, byte index, byte[] out, short outOffset);
+}
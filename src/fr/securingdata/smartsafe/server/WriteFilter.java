@@ -0,0 +1,116 @@
+package fr.securingdata.smartsafe.server;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Avoidance of the persistent writes that would not change the stored values.
+ *
+ * Before a value of the same length is written, it is compared with the stored one:
+ * 	- if both values are equal, nothing is written
+ * 	- if the differences are contained in a range shorter than half of the value, only this range is updated with an atomic copy
+ * 	- otherwise the value is written as usual, see Identity
+ * The differences are accumulated over the whole value without branching on the bytes compared.
+ * Sensitive values (passwords and identifiers) are only checked for equality: they are never patched,
+ * so that neither the duration nor the written range depend on where the stored value differs.
+ * The range of the differences of the other values is located with early exits, its duration depending on the values.
+ *
+ * Partial updates of a value (see Entry#setDataPart(byte, short, byte[], short, short)) are always written
+ * with an atomic copy of the modified range only.
+ *
+ * The counters of avoided writes are kept in RAM and are returned by GET_STATS. All counters saturate at 0x7FFF.
+ * */
+public class WriteFilter implements Constants {
+	private static final byte SKIPPED_INDEX = (byte) 0;//Number of writes skipped
+	private static final byte PATCHED_INDEX = (byte) 1;//Number of writes reduced to the modified range
+	private static final byte SAVED_INDEX   = (byte) 2;//Number of bytes not written in persistent memory
+	private static final byte STATS_SIZE    = (byte) 3;
+
+	private static final byte FIRST_INDEX  = (byte) 0;//Offset of the first modified byte
+	private static final byte LENGTH_INDEX = (byte) 1;//Length of the modified range
+
+	private static short[] stats, range;
+
+	static void init() {
+		stats = JCSystem.makeTransientShortArray(STATS_SIZE, JCSystem.CLEAR_ON_RESET);
+		range = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_RESET);
+	}
+
+	/**
+	 * Update the stored value with the new one if this can be done without rewriting the whole value.
+	 *
+	 * sensitive: true if the value must only be checked for equality
+	 * return: true if the stored value is up to date, false if the new value still has to be written
+	 * */
+	static boolean update(byte[] stored, byte[] in, short inOffset, short len, boolean sensitive) {
+		if (stored == null || (short) stored.length != len)
+			return false;
+		if (!compare(stored, ZERO, in, inOffset, len, sensitive))
+			return true;
+		if (sensitive || (short) (range[LENGTH_INDEX] << 1) >= len)//The journal doubles the cost of an atomic copy
+			return false;
+		patch(stored, ZERO, in, inOffset, len);
+		return true;
+	}
+	/**
+	 * Update len bytes of the stored value from the given offset, only the modified range being written with an atomic copy.
+	 * The whole len bytes are written if the value is sensitive.
+	 * */
+	static void update(byte[] stored, short offset, byte[] in, short inOffset, short len, boolean sensitive) {
+		if (compare(stored, offset, in, inOffset, len, sensitive))
+			patch(stored, offset, in, inOffset, len);
+	}
+
+	/**
+	 * output: number of skipped writes (2 bytes), number of patched writes (2 bytes), number of bytes saved (2 bytes)
+	 * */
+	static short report(byte[] buffer, short offset) {
+		byte i;
+		for (i = 0; i < STATS_SIZE; i++)
+			Util.setShort(buffer, (short) (offset + 2 * i), stats[i]);
+		return (short) (2 * STATS_SIZE);
+	}
+
+	/**
+	 * Compare both values over their whole length and record the range of the differences,
+	 * which is the whole value if it is sensitive.
+	 * return: true if the values differ
+	 * */
+	private static boolean compare(byte[] stored, short offset, byte[] in, short inOffset, short len, boolean sensitive) {
+		short i, last;
+		byte diff = 0;
+		for (i = ZERO; i < len; i++)
+			diff |= (byte) (stored[(short) (offset + i)] ^ in[(short) (inOffset + i)]);
+		if (diff == 0) {
+			add(SKIPPED_INDEX, (short) 1);
+			add(SAVED_INDEX, len);
+			return false;
+		}
+		if (sensitive) {
+			range[FIRST_INDEX] = ZERO;
+			range[LENGTH_INDEX] = len;
+			return true;
+		}
+		
+		//The values differ, both loops stop within the value
+		for (i = ZERO; stored[(short) (offset + i)] == in[(short) (inOffset + i)]; i++);
+		for (last = (short) (len - 1); stored[(short) (offset + last)] == in[(short) (inOffset + last)]; last--);
+		range[FIRST_INDEX] = i;
+		range[LENGTH_INDEX] = (short) (last - i + 1);
+		return true;
+	}
+	private static void patch(byte[] stored, short offset, byte[] in, short inOffset, short len) {
+		short first = range[FIRST_INDEX], length = range[LENGTH_INDEX];
+		if (WriteProfiler.ENABLED)
+			WriteProfiler.atomicWrite(length);
+		Util.arrayCopy(in, (short) (inOffset + first), stored, (short) (offset + first), length);
+		add(PATCHED_INDEX, (short) 1);
+		add(SAVED_INDEX, (short) (len - length));
+	}
+	private static void add(byte index, short value) {
+		short sum = (short) (stats[index] + value);
+		if (sum < 0)//Saturate
+			sum = (short) 0x7FFF;
+		stats[index] = sum;
+	}
+}
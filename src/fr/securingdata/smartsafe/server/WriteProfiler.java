@@ -0,0 +1,122 @@
+package fr.securingdata.smartsafe.server;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Simulator instrumentation attributing persistent memory costs to each command.
+ *
+ * For each CLA/INS processed since the last reset, the following counters are maintained:
+ * 	- the number of times the command has been processed
+ * 	- the number of bytes written in persistent memory (field data, identifiers, PIN transaction buffer...)
+ * 	- the number of bytes logged in the transaction journal (atomic copies and explicit transactions)
+ * 	- the number of bytes allocated in persistent memory (payload only, a reference counts for 2 bytes)
+ * Reference updates performed while linking objects are not counted.
+ * All counters saturate at 0x7FFF.
+ *
+ * The profiler is intended for simulator builds only: it is compiled in when ENABLED is set,
+ * its counters are kept in RAM and its report is returned without authentication.
+ * Every call site is guarded by ENABLED so that production builds do not embed any of this code.
+ * */
+public class WriteProfiler implements Constants {
+	static final boolean ENABLED = false;
+
+	private static final short RECORD_CLAINS_OFFSET    = (short) 0;
+	private static final short RECORD_COUNT_OFFSET     = (short) 2;
+	private static final short RECORD_WRITTEN_OFFSET   = (short) 4;
+	private static final short RECORD_JOURNAL_OFFSET   = (short) 6;
+	private static final short RECORD_ALLOCATED_OFFSET = (short) 8;
+	private static final short RECORD_SIZE             = (short) 10;
+	private static final short MAX_RECORDS             = (short) 25;
+
+	private static final byte CURRENT_INDEX = (byte) 0;
+	private static final byte LENGTH_INDEX  = (byte) 1;
+
+	private static byte[] records;
+	private static short[] state;
+
+	static void init() {
+		records = JCSystem.makeTransientByteArray((short) (MAX_RECORDS * RECORD_SIZE), JCSystem.CLEAR_ON_RESET);
+		state = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_RESET);
+		reset();
+	}
+	static void reset() {
+		Util.arrayFillNonAtomic(records, ZERO, (short) records.length, ZERO);
+		state[CURRENT_INDEX] = (short) -1;
+		state[LENGTH_INDEX] = ZERO;
+	}
+
+	/**
+	 * Select the record of the command being processed, all following costs are attributed to it.
+	 * If no more record is available, the costs of the command are not recorded.
+	 * */
+	static void begin(short clains) {
+		short offset;
+		for (offset = ZERO; offset < state[LENGTH_INDEX]; offset += RECORD_SIZE) {
+			if (Util.getShort(records, offset) == clains)
+				break;
+		}
+		if (offset == state[LENGTH_INDEX]) {
+			if (offset == (short) records.length) {
+				state[CURRENT_INDEX] = (short) -1;
+				return;
+			}
+			Util.setShort(records, (short) (offset + RECORD_CLAINS_OFFSET), clains);
+			state[LENGTH_INDEX] += RECORD_SIZE;
+		}
+		state[CURRENT_INDEX] = offset;
+		add(RECORD_COUNT_OFFSET, (short) 1);
+	}
+
+	/**
+	 * Non atomic write of len bytes in persistent memory.
+	 * */
+	static void write(short len) {
+		add(RECORD_WRITTEN_OFFSET, len);
+	}
+	/**
+	 * Atomic write of len bytes in persistent memory.
+	 * Outside of a transaction, the previous value is logged in the journal.
+	 * Inside a transaction, the journal is sampled by #commit().
+	 * */
+	static void atomicWrite(short len) {
+		add(RECORD_WRITTEN_OFFSET, len);
+		if (JCSystem.getTransactionDepth() == 0)
+			add(RECORD_JOURNAL_OFFSET, len);
+	}
+	/**
+	 * To be called just before committing a transaction in order to record the journal usage.
+	 * */
+	static void commit() {
+		add(RECORD_JOURNAL_OFFSET, (short) (JCSystem.getMaxCommitCapacity() - JCSystem.getUnusedCommitCapacity()));
+	}
+	static void allocate(short len) {
+		add(RECORD_ALLOCATED_OFFSET, len);
+	}
+
+	/**
+	 * Write the report in the given buffer.
+	 *
+	 * output: formatted as a list of records, each record being coded as follows:
+	 * 			- CLA INS (2 bytes)
+	 * 			- number of executions (2 bytes)
+	 * 			- bytes written (2 bytes)
+	 * 			- bytes journaled (2 bytes)
+	 * 			- bytes allocated (2 bytes)
+	 * */
+	static short report(byte[] buffer, short offset) {
+		Util.arrayCopyNonAtomic(records, ZERO, buffer, offset, state[LENGTH_INDEX]);
+		return state[LENGTH_INDEX];
+	}
+
+	private static void add(short field, short value) {
+		short offset = state[CURRENT_INDEX];
+		if (offset < 0)
+			return;
+		offset += field;
+		short sum = (short) (Util.getShort(records, offset) + value);
+		if (sum < 0)//Saturate
+			sum = (short) 0x7FFF;
+		Util.setShort(records, offset, sum);
+	}
+}